@@ -0,0 +1,421 @@
+package huffman;
+import java.util.Arrays;
+
+
+
+/**
+ * Table-based asymmetric numeral system (tANS) codec.
+ * Codes each byte in a fractional number of bits, so it beats Huffman on skewed distributions
+ * where the most common byte is well over half the data.  Speed is comparable: one table lookup
+ * and one bit read per byte.
+ *
+ * Frequencies come from FrequencyAnalyser and are normalised to sum to 2^tableLog.
+ * The encoder runs backwards over the input and writes its bits from the end of the stream towards
+ * the front, so the decoder runs forwards over both.
+ *
+ * Data format:
+ * 		Header:
+ * 			[uint32] decoded length
+ * 			[uint8]  table log
+ * 			[uint8]  number of symbols - 1
+ * 		Element:
+ * 			[uint8]  symbol
+ * 			[uint16] normalised frequency
+ * 		Trailer:
+ * 			[uint16] initial decoder state
+ * 			[uint8]  padding bits at the start of the stream
+ * 			[...]    bit stream
+ *
+ * All multi-byte fields are big-endian.
+ * @author Lee Coakley
+ */
+public class AnsCoder implements Codec
+{
+	public  static final int defaultTableLog = 11;
+	private static final int minTableLog     = 5;
+	private static final int maxTableLog     = 15;
+	private static final int headerBytes     = 4 + 1 + 1;
+	private static final int elemBytes       = 1 + 2;
+	private static final int trailerBytes    = 2 + 1;
+
+	private final int tableLog;
+
+
+
+	public AnsCoder() {
+		this( defaultTableLog );
+	}
+
+
+
+	/**
+	 * @param tableLog Log2 of the state table size, 5 to 15.  Larger tables approximate
+	 *                 the true frequencies more closely but cost more cache.
+	 */
+	public AnsCoder( int tableLog ) {
+		if (tableLog < minTableLog || tableLog > maxTableLog)
+			throw new IllegalArgumentException( "tableLog must be " + minTableLog + " to " + maxTableLog + ": " + tableLog );
+
+		this.tableLog = tableLog;
+	}
+
+
+
+	public byte[] compress( byte[] data ) {
+		byte[] out  = new byte[ compressBound(data.length) ];
+		int    size = compress( data, 0, data.length, out, 0 );
+		return Arrays.copyOf( out, size );
+	}
+
+
+
+	public byte[] decompress( byte[] data ) {
+		return decompress( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data.  The declared length is checked against the limits before anything is allocated.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public byte[] decompress( byte[] data, DecodeLimits limits ) {
+		int size = getDecompressedLength( data, 0, data.length );
+		limits.check( size, data.length );
+
+		byte[] out = new byte[ size ];
+		decompress( data, 0, data.length, out, 0 );
+		return out;
+	}
+
+
+
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+
+		int[] hist = histogram( src, offs, len );
+		int   log  = getTableLog( hist );
+		int[] norm = normalise( hist, len, log );
+		int   L    = 1 << log;
+
+		// Encode table: for each symbol, its states in slot order
+		int[]  cumul  = new int [ 257 ];
+		byte[] spread = spread( norm, log );
+		int[]  states = new int [ L ];
+
+		for (int s=0; s<256; s++)
+			cumul[s+1] = cumul[s] + norm[s];
+
+		int[] fill = Arrays.copyOf( cumul, 256 );
+
+		for (int i=0; i<L; i++)
+			states[ fill[spread[i] & 0xFF]++ ] = L + i;
+
+		// Header
+		int pos = dstOffs;
+		pos = Util.putInt( dst, pos, len );
+		dst[pos++] = (byte) log;
+		dst[pos++] = (byte) (countSymbols(norm) - 1);
+
+		for (int s=0; s<256; s++) {
+			if (norm[s] == 0)
+				continue;
+
+			dst[pos++] = (byte) s;
+			pos = Util.putShort( dst, pos, norm[s] );
+		}
+
+		int trailerPos = pos;
+		int streamPos  = pos + trailerBytes;
+
+		// Bits go backwards from the end of the available space, then move down behind the header
+		int  end     = dstOffs + compressBound( len );
+		int  p       = end;
+		int  x       = L;
+		long acc     = 0;
+		int  accBits = 0;
+
+		for (int i=offs+len-1; i>=offs; i--) {
+			int s  = src[i] & 0xFF;
+			int n  = norm[s];
+			int nb = log - (31 - Integer.numberOfLeadingZeros(n));
+
+			if (x < (n << nb))
+				nb--;
+
+			acc     |= (long) (x & ((1 << nb) - 1)) << accBits;
+			accBits += nb;
+			x        = states[ cumul[s] + (x >> nb) - n ];
+
+			while (accBits >= 8) {
+				dst[--p] = (byte) acc;
+				acc    >>>= 8;
+				accBits -= 8;
+			}
+		}
+
+		int skip = 0;
+
+		if (accBits > 0) {
+			dst[--p] = (byte) acc;
+			skip     = 8 - accBits;
+		}
+
+		Util.putShort( dst, trailerPos, x - L );
+		dst[ trailerPos + 2 ] = (byte) skip;
+
+		int streamLen = end - p;
+		System.arraycopy( dst, p, dst, streamPos, streamLen );
+
+		return (streamPos + streamLen) - dstOffs;
+	}
+
+
+
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+
+		checkSize( len, headerBytes );
+
+		int count = Util.getInt( src, offs );
+		int log   = src[ offs + 4 ] & 0xFF;
+		int syms  = (src[ offs + 5 ] & 0xFF) + 1;
+		int pos   = offs + headerBytes;
+
+		if (log < minTableLog || log > maxTableLog)
+			throw new HuffFormatException( "Bad table log: " + log );
+
+		if (count < 0)
+			throw new HuffFormatException( "Bad length: " + count );
+
+		if (count > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + count + " bytes, have " + (dst.length - dstOffs) );
+
+		checkSize( len, headerBytes + (syms * elemBytes) + trailerBytes );
+
+		int   L    = 1 << log;
+		int[] norm = new int[ 256 ];
+		int   sum  = 0;
+
+		for (int i=0, prev=-1; i<syms; i++) {
+			int s   = src[pos] & 0xFF;
+			norm[s] = Util.getShort( src, pos + 1 );
+			sum    += norm[s];
+			pos    += elemBytes;
+
+			if (s <= prev || norm[s] == 0)
+				throw new HuffFormatException( "Bad frequency table at symbol " + i );
+
+			prev = s;
+		}
+
+		if (sum != L)
+			throw new HuffFormatException( "Bad frequencies: sum " + sum + ", expected " + L );
+
+		int state = Util.getShort( src, pos );
+		int skip  = src[ pos + 2 ] & 0xFF;
+		pos      += trailerBytes;
+
+		if (state >= L || skip >= 8)
+			throw new HuffFormatException( "Bad trailer" );
+
+		// Decode table
+		byte[] spread  = spread( norm, log );
+		byte[] nbBits  = new byte[ L ];
+		int[]  newBase = new int [ L ];
+		int[]  next    = norm.clone();
+
+		for (int i=0; i<L; i++) {
+			int x  = next[ spread[i] & 0xFF ]++;
+			int nb = log - (31 - Integer.numberOfLeadingZeros(x));
+			nbBits [i] = (byte) nb;
+			newBase[i] = (x << nb) - L;
+		}
+
+		// Stream
+		int  end   = offs + len;
+		long buf   = 0;
+		int  avail = -skip;
+
+		for (int i=dstOffs; i<dstOffs+count; i++) {
+			while (avail <= 56) {
+				int b = (pos < end) ? (src[pos] & 0xFF) : 0;
+				buf    = (buf << 8) | b;
+				avail += 8;
+				pos++;
+			}
+
+			int nb = nbBits[ state ];
+			dst[i] = spread[ state ];
+
+			avail -= nb;
+			state  = newBase[ state ] + ((int) (buf >>> avail) & ((1 << nb) - 1));
+		}
+
+		return count;
+	}
+
+
+
+	public int compressBound( int len ) {
+		if (len == 0)
+			return 0;
+
+		long bits = (long) len * maxTableLog;
+		long size = headerBytes + (256L * elemBytes) + trailerBytes + ((bits + 7) / 8) + 1;
+		return (int) Math.min( size, Integer.MAX_VALUE );
+	}
+
+
+
+	public int getDecompressedLength( byte[] src, int offs, int len ) {
+		if (len == 0)
+			return 0;
+
+		checkSize( len, headerBytes );
+
+		int count = Util.getInt( src, offs );
+
+		if (count < 0)
+			throw new HuffFormatException( "Bad length: " + count );
+
+		return count;
+	}
+
+
+
+	/**
+	 * Predict the compressed size of a range from its normalised frequencies, without coding it.
+	 * Within a few bytes of the real size.
+	 */
+	public int estimateSize( byte[] src, int offs, int len ) {
+		if (len == 0)
+			return 0;
+
+		int[]  hist = histogram( src, offs, len );
+		int    log  = getTableLog( hist );
+		int[]  norm = normalise( hist, len, log );
+		double bits = 0;
+
+		for (int s=0; s<256; s++)
+			if (hist[s] > 0)
+				bits += hist[s] * (log - (Math.log(norm[s]) / Math.log(2)));
+
+		long size = headerBytes + (countSymbols(norm) * (long) elemBytes) + trailerBytes + (long) Math.ceil( bits / 8 );
+		return (int) Math.min( size, Integer.MAX_VALUE );
+	}
+
+
+
+	private static int[] histogram( byte[] src, int offs, int len ) {
+		int[] hist  = new int[ 256 ];
+		int[] lanes = new int[ 256 * FrequencyAnalyser.laneCount ];
+		FrequencyAnalyser.countFrequencies( src, offs, len, hist, lanes );
+		return hist;
+	}
+
+
+
+	/**
+	 * The table must have at least one slot per symbol.
+	 */
+	private int getTableLog( int[] hist ) {
+		int syms = 0;
+
+		for (int f: hist)
+			if (f > 0)
+				syms++;
+
+		int needed = 32 - Integer.numberOfLeadingZeros( syms - 1 );
+		return Math.max( tableLog, needed );
+	}
+
+
+
+	/**
+	 * Scale frequencies to sum to 2^log, keeping every present symbol at least 1.
+	 */
+	private static int[] normalise( int[] hist, int total, int log ) {
+		int[] norm    = new int[ 256 ];
+		int   L       = 1 << log;
+		int   sum     = 0;
+		int   largest = 0;
+
+		for (int s=0; s<256; s++) {
+			if (hist[s] == 0)
+				continue;
+
+			norm[s] = (int) Math.max( 1, ((long) hist[s] * L + (total / 2)) / total );
+			sum    += norm[s];
+
+			if (hist[s] > hist[largest])
+				largest = s;
+		}
+
+		if (norm[largest] + (L - sum) >= 1) {
+			norm[largest] += L - sum;
+			return norm;
+		}
+
+		// Many rare symbols were rounded up to 1.  Take the excess from the biggest, one at a time.
+		while (sum > L) {
+			int big = 0;
+
+			for (int s=1; s<256; s++)
+				if (norm[s] > norm[big])
+					big = s;
+
+			norm[big]--;
+			sum--;
+		}
+
+		return norm;
+	}
+
+
+
+	/**
+	 * Scatter symbols over the table so each symbol's states are spread evenly.
+	 * The step is odd, so it visits every slot of a power-of-two table exactly once.
+	 */
+	private static byte[] spread( int[] norm, int log ) {
+		int    L      = 1 << log;
+		int    step   = (L >>> 1) + (L >>> 3) + 3;
+		byte[] spread = new byte[ L ];
+		int    pos    = 0;
+
+		for (int s=0; s<256; s++) {
+			for (int i=0; i<norm[s]; i++) {
+				spread[pos] = (byte) s;
+				pos = (pos + step) & (L - 1);
+			}
+		}
+
+		return spread;
+	}
+
+
+
+	private static int countSymbols( int[] norm ) {
+		int count = 0;
+
+		for (int n: norm)
+			if (n > 0)
+				count++;
+
+		return count;
+	}
+
+
+
+	private static void checkSize( int len, int needed ) {
+		if (len < needed)
+			throw new HuffFormatException( "Truncated data: need " + needed + " bytes, have " + len );
+	}
+}
+
+
+
@@ -0,0 +1,435 @@
+package huffman;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+
+/**
+ * Compressed file that grows by appending, without recompressing or rewriting what's already there.
+ * Raw HuffCoder output can't be appended to: its one table covers the whole file.
+ *
+ * The file is a chain of segments.  Each append codes its data as one or more segments, and each segment
+ * is BlockCoder blocks with a fresh table chain, so it decodes on its own, followed by a fixed-size footer:
+ *
+ * 		[uint32] segment number, from 0
+ * 		[uint64] decoded length of the segment
+ * 		[uint64] encoded length of the segment's blocks
+ * 		[uint64] decoded length of the whole file up to the end of this segment
+ * 		[uint32] CRC-32 of the segment's decoded bytes
+ * 		[uint32] CRC-32 of the footer fields above
+ * 		[uint32] magic
+ *
+ * The last footer is always the last thing in the file.  The one before it ends where this segment's
+ * blocks start, so the index is read by walking back through the footers: one small read per segment.
+ * Appending only ever writes past the end.  An append that was cut short leaves a tail that isn't a footer,
+ * which open() rejects and repair() truncates back to the last complete segment.
+ *
+ * Segments hold at most segmentSize decoded bytes, which bounds the work of a random-access read.
+ * Multi-byte fields are big-endian.  Not thread-safe.
+ * @author Lee Coakley
+ */
+public class AppendableFile implements Closeable
+{
+	public static final int defaultSegmentSize = 1024 * 1024;
+	public static final int footerBytes        = 4 + 8 + 8 + 8 + 4 + 4 + 4;
+
+	private static final int magic = 0x48554641; // "HUFA"
+
+	private final FileChannel   channel;
+	private final BlockCoder    coder;
+	private final int           segmentSize;
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	private long                fileLength;
+	private long                decodedLength;
+
+
+
+	/**
+	 * Open or create a file with default settings.
+	 * @throws HuffFormatException if the file isn't a valid chain of segments.
+	 */
+	public AppendableFile( Path path ) throws IOException {
+		this( path, new BlockCoder(), defaultSegmentSize );
+	}
+
+
+
+	/**
+	 * @param coder       Used for new segments.  Existing ones decode whatever they were written with.
+	 * @param segmentSize Most decoded bytes per segment.  Smaller makes random reads cheaper and costs 40 bytes each.
+	 * @throws HuffFormatException if the file isn't a valid chain of segments.
+	 */
+	public AppendableFile( Path path, BlockCoder coder, int segmentSize ) throws IOException {
+		if (segmentSize < 1)
+			throw new IllegalArgumentException( "Bad segment size: " + segmentSize );
+
+		this.coder       = coder;
+		this.segmentSize = segmentSize;
+		this.channel     = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+
+		try {
+			fileLength = channel.size();
+			readIndex();
+		}
+		catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+
+
+	/**
+	 * Truncate a file whose last append was cut short back to its last complete segment.
+	 * @return Number of bytes removed.
+	 */
+	public static long repair( Path path ) throws IOException {
+		try (FileChannel ch = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE )) {
+			long       size  = ch.size();
+			ByteBuffer chunk = ByteBuffer.allocate( 64 * 1024 );
+			long       end   = size;
+
+			while (end > 0) { // Search backwards a chunk at a time for the magic, then check the chain from there
+				long start = Math.max( 0, end - chunk.capacity() );
+				chunk.clear().limit( (int) (end - start) );
+				readFully( ch, chunk, start );
+
+				for (int i=chunk.limit()-4; i>=0; i--) {
+					long candidate = start + i + 4;
+
+					if (chunk.getInt( i ) == magic && isValidEnd( ch, candidate )) {
+						ch.truncate( candidate );
+						return size - candidate;
+					}
+				}
+
+				end = (start == 0) ? 0 : start + 3; // Overlap so a magic across chunks isn't missed
+			}
+
+			ch.truncate( 0 );
+			return size;
+		}
+	}
+
+
+
+	public void append( byte[] data ) throws IOException {
+		append( data, 0, data.length );
+	}
+
+
+
+	/**
+	 * Compress and append src[offs,offs+len) as one or more new segments.
+	 */
+	public void append( byte[] src, int offs, int len ) throws IOException {
+		for (int i=0; i<len; i+=segmentSize)
+			appendSegment( src, offs + i, Math.min(segmentSize, len - i) );
+	}
+
+
+
+	/**
+	 * Read len decoded bytes starting at pos.  Only the segments overlapping the range are decoded.
+	 * @throws HuffFormatException if a segment is corrupt.
+	 */
+	public byte[] read( long pos, int len ) throws IOException {
+		if (pos < 0 || len < 0 || pos > decodedLength - len)
+			throw new IndexOutOfBoundsException( "Range [" + pos + "," + (pos + len) + ") outside [0," + decodedLength + ")" );
+
+		byte[] out     = new byte[ len ];
+		int    written = 0;
+
+		for (int i=findSegment(pos); written < len; i++) {
+			Segment s    = segments.get( i );
+			byte[]  data = readSegment( s );
+			int     from = (int) (pos + written - s.decodedStart);
+			int     n    = Math.min( len - written, data.length - from );
+
+			System.arraycopy( data, from, out, written, n );
+			written += n;
+		}
+
+		return out;
+	}
+
+
+
+	/**
+	 * Decode the whole file.
+	 * @throws HuffFormatException if a segment is corrupt.
+	 */
+	public byte[] readAll() throws IOException {
+		if (decodedLength > Integer.MAX_VALUE)
+			throw new IllegalStateException( "Too large for one array: " + decodedLength + " bytes" );
+
+		return read( 0, (int) decodedLength );
+	}
+
+
+
+	public long getDecodedLength() {
+		return decodedLength;
+	}
+
+
+
+	public long getFileLength() {
+		return fileLength;
+	}
+
+
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+
+
+	/**
+	 * Flush appended data to the storage device.
+	 */
+	public void sync() throws IOException {
+		channel.force( true );
+	}
+
+
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+
+
+	private void appendSegment( byte[] src, int offs, int len ) throws IOException {
+		byte[] blocks = new byte[ coder.compressBound(len) ];
+		int    encLen = coder.compress( src, offs, len, blocks, 0 );
+
+		CRC32 crc = new CRC32();
+		crc.update( src, offs, len );
+
+		Segment s = new Segment( segments.size(), fileLength, len, encLen, decodedLength, (int) crc.getValue() );
+
+		writeFully( ByteBuffer.wrap(blocks, 0, encLen), fileLength          );
+		writeFully( s.toFooter(),                       fileLength + encLen );
+
+		segments.add( s );
+		fileLength    += encLen + footerBytes;
+		decodedLength += len;
+	}
+
+
+
+	private byte[] readSegment( Segment s ) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate( (int) s.encodedLength );
+		readFully( channel, buf, s.fileOffset );
+
+		byte[] blocks = buf.array();
+
+		if (coder.getDecompressedLength( blocks, 0, blocks.length ) != s.decodedLength)
+			throw new HuffFormatException( "Segment " + s.number + " blocks disagree with its footer on length" );
+
+		byte[] data = new byte[ (int) s.decodedLength ];
+		coder.decompress( blocks, 0, blocks.length, data, 0 );
+
+		CRC32 crc = new CRC32();
+		crc.update( data );
+
+		if ((int) crc.getValue() != s.dataCrc)
+			throw new HuffFormatException( "Segment " + s.number + " fails its checksum" );
+
+		return data;
+	}
+
+
+
+	private void readIndex() throws IOException {
+		segments.addAll( readChain(channel, fileLength) );
+
+		if ( ! segments.isEmpty()) {
+			Segment last  = segments.get( segments.size() - 1 );
+			decodedLength = last.decodedStart + last.decodedLength;
+		}
+	}
+
+
+
+	/**
+	 * Walk back through the footers from end to the start of the file.
+	 * @return The segments in order.
+	 * @throws HuffFormatException if they don't form a complete chain.
+	 */
+	private static List<Segment> readChain( FileChannel ch, long end ) throws IOException {
+		List<Segment> found = new ArrayList<Segment>();
+		long          top   = end;
+
+		while (end > 0) {
+			Segment s = readFooter( ch, end );
+
+			if (s == null)
+				throw new HuffFormatException( "No valid footer ending at " + end + ((end == top) ? ": last append incomplete, see repair()" : "") );
+
+			if ( ! found.isEmpty()) {
+				Segment next = found.get( 0 );
+
+				if (s.number != next.number - 1 || s.decodedStart + s.decodedLength != next.decodedStart)
+					throw new HuffFormatException( "Segment " + s.number + " doesn't chain to segment " + next.number );
+			}
+
+			found.add( 0, s );
+			end = s.fileOffset;
+		}
+
+		if ( ! found.isEmpty() && (found.get(0).number != 0 || found.get(0).decodedStart != 0))
+			throw new HuffFormatException( "Chain doesn't start at segment 0" );
+
+		return found;
+	}
+
+
+
+	private static boolean isValidEnd( FileChannel ch, long end ) throws IOException {
+		try {
+			readChain( ch, end );
+			return true;
+		}
+		catch (HuffFormatException ex) {
+			return false;
+		}
+	}
+
+
+
+	/**
+	 * @return The segment whose footer ends at end, or null if there isn't a valid footer there.
+	 */
+	private static Segment readFooter( FileChannel ch, long end ) throws IOException {
+		if (end < footerBytes)
+			return null;
+
+		ByteBuffer buf = ByteBuffer.allocate( footerBytes );
+		readFully( ch, buf, end - footerBytes );
+		buf.flip();
+
+		int  number        = buf.getInt ();
+		long decodedLength = buf.getLong();
+		long encodedLength = buf.getLong();
+		long decodedEnd    = buf.getLong();
+		int  dataCrc       = buf.getInt ();
+		int  footerCrc     = buf.getInt ();
+		int  footerMagic   = buf.getInt ();
+
+		CRC32 crc = new CRC32();
+		crc.update( buf.array(), 0, footerBytes - 8 );
+
+		if (footerMagic != magic || footerCrc != (int) crc.getValue())
+			return null;
+
+		long fileOffset = end - footerBytes - encodedLength;
+
+		boolean sane = number >= 0
+			&& decodedLength >= 0 && decodedLength <= Integer.MAX_VALUE
+			&& encodedLength >= 0 && encodedLength <= Integer.MAX_VALUE
+			&& fileOffset    >= 0 && decodedEnd    >= decodedLength;
+
+		if ( ! sane)
+			return null;
+
+		return new Segment( number, fileOffset, decodedLength, encodedLength, decodedEnd - decodedLength, dataCrc );
+	}
+
+
+
+	/**
+	 * Index of the segment holding decoded byte pos.
+	 */
+	private int findSegment( long pos ) {
+		int lo = 0;
+		int hi = segments.size() - 1;
+
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+
+			if (segments.get(mid).decodedStart <= pos)
+				 lo = mid;
+			else hi = mid - 1;
+		}
+
+		return lo;
+	}
+
+
+
+	private void writeFully( ByteBuffer buf, long pos ) throws IOException {
+		while (buf.hasRemaining())
+			pos += channel.write( buf, pos );
+	}
+
+
+
+	private static void readFully( FileChannel ch, ByteBuffer buf, long pos ) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = ch.read( buf, pos );
+
+			if (n < 0)
+				throw new HuffFormatException( "Unexpected end of file at " + pos );
+
+			pos += n;
+		}
+	}
+
+
+
+	private static final class Segment
+	{
+		final int  number;
+		final long fileOffset;    // Where its blocks start
+		final long decodedLength;
+		final long encodedLength; // Blocks only, not the footer
+		final long decodedStart;
+		final int  dataCrc;
+
+
+
+		Segment( int number, long fileOffset, long decodedLength, long encodedLength, long decodedStart, int dataCrc ) {
+			this.number        = number;
+			this.fileOffset    = fileOffset;
+			this.decodedLength = decodedLength;
+			this.encodedLength = encodedLength;
+			this.decodedStart  = decodedStart;
+			this.dataCrc       = dataCrc;
+		}
+
+
+
+		ByteBuffer toFooter() {
+			ByteBuffer buf = ByteBuffer.allocate( footerBytes );
+
+			buf.putInt ( number );
+			buf.putLong( decodedLength );
+			buf.putLong( encodedLength );
+			buf.putLong( decodedStart + decodedLength );
+			buf.putInt ( dataCrc );
+
+			CRC32 crc = new CRC32();
+			crc.update( buf.array(), 0, buf.position() );
+
+			buf.putInt( (int) crc.getValue() );
+			buf.putInt( magic );
+			buf.flip();
+			return buf;
+		}
+	}
+}
+
+
+
@@ -0,0 +1,285 @@
+package huffman;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Compresses or decompresses every file in a directory tree, mirroring it into an output tree.
+ * Files are processed concurrently on a bounded worker pool, all within one JVM.
+ *
+ * Usage:
+ * 		BatchCoder (-c | -d) inputDir outputDir [-threads n] [-virtual]
+ *
+ * Compressed files get the ".huff" extension; decompression strips it again.
+ * With -virtual each file gets its own virtual thread when the runtime supports them,
+ * which overlaps I/O better.  The number of files in flight is bounded either way.
+ *
+ * @author Lee Coakley
+ */
+public class BatchCoder
+{
+	public  static final String extension = ".huff";
+
+	private final boolean    compress;
+	private final Path       inputRoot;
+	private final Path       outputRoot;
+	private final int        threads;
+	private final boolean    virtual;
+
+	private final AtomicLong files    = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong bytesIn  = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+
+
+	public BatchCoder( boolean compress, Path inputRoot, Path outputRoot, int threads, boolean virtual ) {
+		this.compress   = compress;
+		this.inputRoot  = inputRoot;
+		this.outputRoot = outputRoot;
+		this.threads    = Math.max( 1, threads );
+		this.virtual    = virtual;
+	}
+
+
+
+	public static void main( String[] args ) throws Exception {
+		if (args.length < 3) {
+			printUsage();
+			return;
+		}
+
+		boolean compress = args[0].equals( "-c" );
+		int     threads  = Runtime.getRuntime().availableProcessors();
+		boolean virtual  = false;
+
+		if ( ! compress && ! args[0].equals( "-d" )) {
+			printUsage();
+			return;
+		}
+
+		try {
+			for (int i=3; i<args.length; i++) {
+				if      (args[i].equals( "-threads" )) threads = getIntArg( args, ++i );
+				else if (args[i].equals( "-virtual" )) virtual = true;
+				else throw new IllegalArgumentException( "Unknown option: " + args[i] );
+			}
+		}
+		catch (IllegalArgumentException ex) {
+			System.err.println( "Error: " + ex.getMessage() );
+			printUsage();
+			System.exit( 2 );
+		}
+
+		BatchCoder batch = new BatchCoder( compress, Paths.get(args[1]), Paths.get(args[2]), threads, virtual );
+		batch.run();
+
+		if (batch.getFailureCount() > 0)
+			System.exit( 1 );
+	}
+
+
+
+	/**
+	 * Process the whole input tree and print a summary when done.
+	 */
+	public void run() throws IOException, InterruptedException {
+		final ExecutorService pool     = createExecutor();
+		final Semaphore       inFlight = new Semaphore( getMaxInFlight() );
+		final Path            skip     = outputRoot.toAbsolutePath().normalize();
+		long                  start    = System.nanoTime();
+
+		try {
+			Files.walkFileTree( inputRoot, new SimpleFileVisitor<Path>() {
+				public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) {
+					if (dir.toAbsolutePath().normalize().equals( skip ))
+						 return FileVisitResult.SKIP_SUBTREE; // Output nested in the input; don't code our own output
+					else return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFile( final Path file, BasicFileAttributes attrs ) {
+					if ( ! attrs.isRegularFile())
+						return FileVisitResult.CONTINUE;
+
+					inFlight.acquireUninterruptibly();
+
+					pool.execute( new Runnable() {
+						public void run() {
+							try {
+								processFile( file );
+							} finally {
+								inFlight.release();
+							}
+						}
+					});
+
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed( Path file, IOException ex ) {
+					recordFailure( file, ex );
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+		}
+
+		printSummary( System.nanoTime() - start );
+	}
+
+
+
+	public long getFileCount() {
+		return files.get();
+	}
+
+
+
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+
+
+	private void processFile( Path file ) {
+		try {
+			byte[] in  = Files.readAllBytes( file );
+			byte[] out = compress ? HuffCoder.encode( in ) : HuffCoder.decode( in );
+			Path   dst = getOutputPath( file );
+
+			Path parent = dst.getParent();
+			if (parent != null)
+				Files.createDirectories( parent );
+
+			Files.write( dst, out );
+
+			files   .incrementAndGet();
+			bytesIn .addAndGet( in .length );
+			bytesOut.addAndGet( out.length );
+		}
+		catch (Exception ex) {
+			recordFailure( file, ex );
+		}
+	}
+
+
+
+	private Path getOutputPath( Path file ) {
+		String rel = inputRoot.relativize( file ).toString();
+
+		if (compress)
+			 rel += extension;
+		else if (rel.endsWith( extension ))
+			 rel = rel.substring( 0, rel.length() - extension.length() );
+
+		return outputRoot.resolve( rel );
+	}
+
+
+
+	private static int getIntArg( String[] args, int i ) {
+		if (i >= args.length)
+			throw new IllegalArgumentException( "Missing value for " + args[i-1] );
+
+		return Integer.parseInt( args[i] );
+	}
+
+
+
+	private void recordFailure( Path file, Exception ex ) {
+		failures.incrementAndGet();
+		System.err.println( "Failed: " + file + ": " + ex );
+	}
+
+
+
+	/**
+	 * Platform threads are CPU-bound so one file each is enough.
+	 * Virtual threads are cheap and mostly wait on I/O, so allow more in flight.
+	 */
+	private int getMaxInFlight() {
+		if (virtual && isVirtualThreadSupported())
+			 return threads * 16;
+		else return threads * 2;
+	}
+
+
+
+	private ExecutorService createExecutor() {
+		if (virtual) {
+			ExecutorService exec = createVirtualExecutor();
+
+			if (exec != null)
+				return exec;
+
+			System.err.println( "Virtual threads not supported by this runtime; using " + threads + " platform threads." );
+		}
+
+		return Executors.newFixedThreadPool( threads );
+	}
+
+
+
+	/**
+	 * Virtual threads arrived in Java 21.  Looked up reflectively so the code still builds and runs on older JDKs.
+	 */
+	private static ExecutorService createVirtualExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+
+
+	private static boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+			return true;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+
+
+	private void printSummary( long nanos ) {
+		double seconds   = Math.max( nanos / 1e9, 1e-9 );
+		long   in        = bytesIn .get();
+		long   out       = bytesOut.get();
+		double megabytes = in / (1024.0 * 1024.0);
+		double ratio     = (in == 0) ? 0 : out / (double) in;
+
+		System.out.println( "Files:       " + files.get() );
+		System.out.println( "Failures:    " + failures.get() );
+		System.out.println( "Bytes in:    " + in  );
+		System.out.println( "Bytes out:   " + out );
+		System.out.println( "Size factor: " + Math.round( ratio * 100 ) + "%" );
+		System.out.println( "Time:        " + String.format( "%.3f s",    seconds ) );
+		System.out.println( "Throughput:  " + String.format( "%.2f MB/s", megabytes / seconds ) );
+	}
+
+
+
+	private static void printUsage() {
+		System.out.println( "Usage: BatchCoder (-c | -d) inputDir outputDir [-threads n] [-virtual]" );
+	}
+}
+
+
+
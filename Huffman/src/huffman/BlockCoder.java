@@ -0,0 +1,490 @@
+package huffman;
+import java.util.Arrays;
+
+
+
+/**
+ * Splits data into blocks and codes each with whichever backend is predicted to make it smallest.
+ * Each block is tagged with its backend, so decoding needs no configuration.
+ * Blocks that no backend can shrink are stored as-is.
+ *
+ * Block boundaries follow the data.  Input is taken a window of blockSize bytes at a time, and each
+ * window is split where its statistics change (see BlockSplitter) into blocks of at least minBlockSize.
+ *
+ * Data format:
+ * 		Block, repeated until the end of the data:
+ * 			[uint8]  codec: 0 stored, 1 Huffman (HuffCoder), 2 tANS (AnsCoder), 3 byte-pair Huffman (DigramCoder)
+ * 			[uint8]  flags: Huffman table mode (see TableChain), otherwise zero
+ * 			[uint32] decoded length
+ * 			[uint32] encoded length
+ * 			[...]    payload, in the codec's own format
+ *
+ * Huffman blocks may reuse or patch the previous Huffman block's table, so blocks must be decoded in order.
+ * A stream of blocks can be concatenated with another and still decode.
+ * Multi-byte fields are big-endian.
+ * @author Lee Coakley
+ */
+public class BlockCoder implements Codec
+{
+	public  static final int defaultBlockSize    = 128 * 1024;
+	public  static final int defaultMinBlockSize = 8 * 1024;
+	public  static final int minLevel            = 1;
+	public  static final int maxLevel            = 9;
+	public  static final int defaultLevel        = 6;
+
+	static final int codecStored  = 0;
+	static final int codecHuffman = 1;
+	static final int codecAns     = 2;
+	static final int codecDigram  = 3;
+	static final int headerBytes  = 1 + 1 + 4 + 4;
+
+	// Strategy for each level, indexed by level.  See BlockCoder(int,int).
+	private static final int[] levelBlockKb = {    0,  256,  128,  128,  128,  128,  128,  256,  512, 1024 };
+	private static final int[] levelSplitKb = {    0,    0,    0,   16,    8,    8,    8,    8,    4,    4 }; // 0 for fixed-size blocks
+	private static final int[] levelAnsLog  = {    0,    0,   11,   11,   11,   11,   11,   12,   12,   12 }; // 0 for no tANS
+	private static final int[] levelPairs   = {    0,    0,    0,  256,  512,  512,  512,  512,  512,  512 }; // 0 for no byte pairs
+	private static final int[] levelSample  = {    0,    0,    8,    8,    4,    2,    1,    1,    1,    1 }; // Estimate from 1/n of each block
+
+	private static final int widePairsLevel = 9;    // Also weighs the largest byte-pair alphabet
+	private static final int maxSplits      = 256;  // Segments per window; BlockSplitter's work is quadratic in them
+	private static final int sampleSlices   = 4;    // Evenly spaced, so a sample sees the whole block
+	private static final int minSample      = 4096;
+	private static final int codecWide      = -1;   // Byte pairs with the wide alphabet, as chosen but not as written
+
+	private final int         blockSize;
+	private final int         minBlockSize;
+	private final int         level;
+	private final HuffCoder   huff = new HuffCoder();
+	private final AnsCoder    ans;
+	private final DigramCoder digram;
+	private final DigramCoder digramWide = new DigramCoder( DigramCoder.maxPairsLimit );
+
+
+
+	public BlockCoder() {
+		this( defaultBlockSize );
+	}
+
+
+
+	public BlockCoder( int blockSize ) {
+		this( blockSize, defaultLevel );
+	}
+
+
+
+	/**
+	 * Coder for a level, with that level's block size.
+	 */
+	public static BlockCoder forLevel( int level ) {
+		checkLevel( level );
+		return new BlockCoder( levelBlockKb[level] * 1024, level );
+	}
+
+
+
+	/**
+	 * Higher levels weigh up more backends, more carefully, and split blocks more finely.
+	 * Every level reuses and patches tables between Huffman blocks.  Decoding speed is about the same at
+	 * every level, as is the format: any level's output decodes with any BlockCoder.
+	 *
+	 * 		level  block  split  tANS states  byte pairs   backends chosen by
+	 * 		1      256K   -      -            -            -
+	 * 		2      128K   -      2K           -            estimate from 1/8 of the block
+	 * 		3      128K   16K    2K           256          estimate from 1/8
+	 * 		4      128K   8K     2K           512          estimate from 1/4
+	 * 		5      128K   8K     2K           512          estimate from 1/2
+	 * 		6      128K   8K     2K           512          estimate from the whole block
+	 * 		7      256K   8K     4K           512          estimate from the whole block
+	 * 		8      512K   4K     4K           512          estimate from the whole block
+	 * 		9      1M     4K     4K           512, 2047    estimate from the whole block
+	 *
+	 * The block size column is what forLevel() uses; here it's given by blockSize instead.
+	 * Huffman is always planned exactly, since its histogram is needed for coding anyway.
+	 * @param level minLevel to maxLevel.  See README for measured speeds and ratios.
+	 */
+	public BlockCoder( int blockSize, int level ) {
+		this( getMinBlockSize(blockSize, level), blockSize, level );
+	}
+
+
+
+	/**
+	 * @param minBlockSize Smallest block a window may be split into.  Equal to blockSize for fixed-size blocks.
+	 *                     At least blockSize / 256, rounded up, which bounds the work of splitting a window.
+	 * @param blockSize    Largest block, and the window size.
+	 */
+	public BlockCoder( int minBlockSize, int blockSize, int level ) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException( "Bad block size: " + blockSize );
+
+		if (minBlockSize <= 0 || minBlockSize > blockSize)
+			throw new IllegalArgumentException( "Bad minimum block size: " + minBlockSize );
+
+		if (minBlockSize < getSplitFloor( blockSize ))
+			throw new IllegalArgumentException( "Minimum block size must be at least " + getSplitFloor(blockSize) + " for blocks of " + blockSize + ": " + minBlockSize );
+
+		checkLevel( level );
+
+		this.blockSize    = blockSize;
+		this.minBlockSize = minBlockSize;
+		this.level        = level;
+		this.ans          = (levelAnsLog[level] > 0) ? new AnsCoder( levelAnsLog[level] ) : new AnsCoder();
+		this.digram       = (levelPairs [level] > 0) ? new DigramCoder( levelPairs[level] ) : new DigramCoder();
+	}
+
+
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+
+
+	public int getMinBlockSize() {
+		return minBlockSize;
+	}
+
+
+
+	public int getLevel() {
+		return level;
+	}
+
+
+
+	public byte[] compress( byte[] data ) {
+		byte[] out  = new byte[ compressBound(data.length) ];
+		int    size = compress( data, 0, data.length, out, 0 );
+		return Arrays.copyOf( out, size );
+	}
+
+
+
+	public byte[] decompress( byte[] data ) {
+		return decompress( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data.  All block headers are validated and the total checked against
+	 * the limits before anything is allocated.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public byte[] decompress( byte[] data, DecodeLimits limits ) {
+		int size = getDecompressedLength( data, 0, data.length );
+		limits.check( size, data.length );
+
+		byte[] out = new byte[ size ];
+		decompress( data, 0, data.length, out, 0 );
+		return out;
+	}
+
+
+
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		byte[]     scratch = new byte[ getScratchSize(Math.min(len, blockSize)) ];
+		TableChain chain   = new TableChain();
+		int        pos     = dstOffs;
+
+		for (int i=0; i<len; i+=blockSize) {
+			int windowLen = Math.min( blockSize, len - i );
+			pos += compressWindow( src, offs + i, windowLen, dst, pos, scratch, chain );
+		}
+
+		return pos - dstOffs;
+	}
+
+
+
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		TableChain chain  = new TableChain();
+		int        pos    = offs;
+		int        end    = offs + len;
+		int        outPos = dstOffs;
+
+		while (pos < end) {
+			checkHeader( src, pos, end );
+
+			int codec   = src[pos  ] & 0xFF;
+			int flags   = src[pos+1] & 0xFF;
+			int decLen  = Util.getInt( src, pos + 2 );
+			int encLen  = Util.getInt( src, pos + 6 );
+			int payload = pos + headerBytes;
+
+			if (decLen > dst.length - outPos)
+				throw new IllegalArgumentException( "Destination too small" );
+
+			outPos += decompressBlock( codec, flags, src, payload, encLen, dst, outPos, decLen, chain );
+			pos     = payload + encLen;
+		}
+
+		return outPos - dstOffs;
+	}
+
+
+
+	/**
+	 * Worst case is every block stored.  Splitting a window into blocks of at least minBlockSize
+	 * makes at most one more block per window than len / minBlockSize.
+	 */
+	public int compressBound( int len ) {
+		long windows = (len + (long) blockSize - 1) / blockSize;
+		long blocks  = (len + (long) minBlockSize - 1) / minBlockSize + windows;
+		long size    = len + (blocks * headerBytes);
+		return (int) Math.min( size, Integer.MAX_VALUE );
+	}
+
+
+
+	public int getDecompressedLength( byte[] src, int offs, int len ) {
+		int  pos = offs;
+		int  end = offs + len;
+		long sum = 0;
+
+		while (pos < end) {
+			checkHeader( src, pos, end );
+			sum += Util.getInt( src, pos + 2 ) & 0xFFFFFFFFL;
+			pos += headerBytes + Util.getInt( src, pos + 6 );
+		}
+
+		if (sum > Integer.MAX_VALUE)
+			throw new HuffFormatException( "Decoded size too large: " + sum );
+
+		return (int) sum;
+	}
+
+
+
+	/**
+	 * Code a window of up to blockSize bytes as one or more blocks, split where its statistics change.
+	 * Needs at most compressBound(len) bytes of room.
+	 * @return Bytes written.
+	 */
+	int compressWindow( byte[] src, int offs, int len, byte[] dst, int dstOffs, byte[] scratch, TableChain chain ) {
+		if (minBlockSize >= len)
+			return compressBlock( src, offs, len, dst, dstOffs, scratch, chain );
+
+		int pos = dstOffs;
+
+		for (int blockLen: BlockSplitter.split( src, offs, len, minBlockSize )) {
+			pos  += compressBlock( src, offs, blockLen, dst, pos, scratch, chain );
+			offs += blockLen;
+		}
+
+		return pos - dstOffs;
+	}
+
+
+
+	/**
+	 * Code one block with its header.
+	 * The chain carries the Huffman table between blocks: use one per stream.
+	 * @return Bytes written.
+	 */
+	int compressBlock( byte[] src, int offs, int len, byte[] dst, int dstOffs, byte[] scratch, TableChain chain ) {
+		int codec   = chooseCodec( src, offs, len, chain, scratch );
+		int flags   = 0;
+		int encLen  = len;
+		int payload = dstOffs + headerBytes;
+
+		if (codec == codecHuffman) {
+			encLen = chain.encode( src, offs, len, scratch, 0 ); // Exact, so never worse than stored
+			flags  = chain.getMode();
+			chain.commit();
+		}
+		else if (codec == codecWide) {
+			encLen = digramWide.compress( src, offs, len, scratch, 0 );
+			codec  = (encLen < len) ? codecDigram : codecStored;
+		}
+		else if (codec != codecStored) {
+			encLen = getCodec( codec ).compress( src, offs, len, scratch, 0 );
+
+			if (encLen >= len) // Estimate was off
+				codec = codecStored;
+		}
+
+		if (codec == codecStored) {
+			encLen = len;
+			System.arraycopy( src, offs, dst, payload, len );
+		}
+		else System.arraycopy( scratch, 0, dst, payload, encLen );
+
+		writeHeader( dst, dstOffs, codec, flags, len, encLen );
+		return headerBytes + encLen;
+	}
+
+
+
+	/**
+	 * Decode one block's payload.
+	 * @return Bytes written, always decLen.
+	 */
+	int decompressBlock( int codec, int flags, byte[] src, int offs, int len, byte[] dst, int dstOffs, int decLen, TableChain chain ) {
+		int written;
+
+		if (codec != codecHuffman && flags != 0)
+			throw new HuffFormatException( "Bad flags for codec " + codec + ": " + flags );
+
+		if (codec == codecStored) {
+			if (len != decLen)
+				throw new HuffFormatException( "Stored block has " + len + " bytes, expected " + decLen );
+
+			System.arraycopy( src, offs, dst, dstOffs, len );
+			written = len;
+		}
+		else if (codec == codecHuffman)
+			written = chain.decode( flags, src, offs, len, dst, dstOffs, decLen );
+		else {
+			Codec c = getCodec( codec );
+
+			if (c.getDecompressedLength( src, offs, len ) != decLen)
+				throw new HuffFormatException( "Block header and payload disagree on length" );
+
+			written = c.decompress( src, offs, len, dst, dstOffs );
+		}
+
+		if (written != decLen)
+			throw new HuffFormatException( "Block decoded to " + written + " bytes, expected " + decLen );
+
+		return written;
+	}
+
+
+
+	/**
+	 * Scratch space needed by compressBlock() for blocks of up to len bytes.
+	 */
+	int getScratchSize( int len ) {
+		return Math.max( huff.compressBound(len), Math.max(ans.compressBound(len), digram.compressBound(len)) );
+	}
+
+
+
+	/**
+	 * Pick the backend with the smallest predicted output, or none if nothing beats storing.
+	 * Overwrites scratch.
+	 */
+	private int chooseCodec( byte[] src, int offs, int len, TableChain chain, byte[] scratch ) {
+		long huffSize   = (len > 0) ? chain.plan( src, offs, len ) : 0;
+		long ansSize    = Long.MAX_VALUE;
+		long digramSize = Long.MAX_VALUE;
+		long wideSize   = Long.MAX_VALUE;
+
+		boolean useAns    = levelAnsLog[level] > 0;
+		boolean useDigram = levelPairs [level] > 0;
+
+		if ((useAns || useDigram) && len > 0) {
+			if (levelSample[level] > 1 && len / levelSample[level] >= minSample) {
+				int  sampleLen  = takeSample( src, offs, len, len / levelSample[level], scratch );
+				long huffSample = HuffWorkspace.get().analyse( scratch, 0, sampleLen );
+
+				if (useAns)    ansSize    = ans   .estimateSize( scratch, 0, sampleLen ) * huffSize / huffSample;
+				if (useDigram) digramSize = digram.estimateSize( scratch, 0, sampleLen ) * huffSize / huffSample;
+			}
+			else {
+				if (useAns)    ansSize    = ans   .estimateSize( src, offs, len );
+				if (useDigram) digramSize = digram.estimateSize( src, offs, len );
+			}
+
+			if (level >= widePairsLevel)
+				wideSize = digramWide.estimateSize( src, offs, len );
+		}
+
+		long best = Math.min( Math.min(huffSize, ansSize), Math.min(digramSize, wideSize) );
+
+		if (best >= len)
+			return codecStored;
+
+		if (best == huffSize) // Ties go to Huffman, whose table the next block may reuse
+			return codecHuffman;
+
+		if (best == ansSize)
+			return codecAns;
+
+		return (best == digramSize) ? codecDigram : codecWide;
+	}
+
+
+
+	/**
+	 * Copy evenly spaced slices of the block, about sampleLen bytes in all, to the start of dst.
+	 * Backends are compared on the sample by how they do relative to Huffman on it, which
+	 * is then scaled by Huffman's exact size for the whole block.
+	 * @return Bytes copied.
+	 */
+	private static int takeSample( byte[] src, int offs, int len, int sampleLen, byte[] dst ) {
+		int sliceLen = sampleLen / sampleSlices;
+		int stride   = len / sampleSlices;
+
+		for (int i=0; i<sampleSlices; i++)
+			System.arraycopy( src, offs + i*stride, dst, i*sliceLen, sliceLen );
+
+		return sliceLen * sampleSlices;
+	}
+
+
+
+	private static int getMinBlockSize( int blockSize, int level ) {
+		checkLevel( level );
+
+		if (levelSplitKb[level] == 0)
+			return blockSize;
+
+		return Math.max( getSplitFloor(blockSize), Math.min(levelSplitKb[level] * 1024, blockSize) );
+	}
+
+
+
+	/**
+	 * Smallest minimum block size that keeps a window to maxSplits segments.
+	 */
+	private static int getSplitFloor( int blockSize ) {
+		return Math.max( 1, (int) ((blockSize + (long) maxSplits - 1) / maxSplits) );
+	}
+
+
+
+	private static void checkLevel( int level ) {
+		if (level < minLevel || level > maxLevel)
+			throw new IllegalArgumentException( "Level must be " + minLevel + " to " + maxLevel + ": " + level );
+	}
+
+
+
+	private Codec getCodec( int codec ) {
+		switch (codec) {
+			case codecHuffman: return huff;
+			case codecAns:     return ans;
+			case codecDigram:  return digram;
+			default:           throw new HuffFormatException( "Unknown codec: " + codec );
+		}
+	}
+
+
+
+	static void writeHeader( byte[] dst, int pos, int codec, int flags, int decLen, int encLen ) {
+		dst[pos  ] = (byte) codec;
+		dst[pos+1] = (byte) flags;
+		Util.putInt( dst, pos + 2, decLen );
+		Util.putInt( dst, pos + 6, encLen );
+	}
+
+
+
+	private static void checkHeader( byte[] src, int pos, int end ) {
+		if (end - pos < headerBytes)
+			throw new HuffFormatException( "Truncated block header at " + pos );
+
+		int decLen = Util.getInt( src, pos + 2 );
+		int encLen = Util.getInt( src, pos + 6 );
+
+		if (decLen < 0 || encLen < 0 || encLen > end - pos - headerBytes)
+			throw new HuffFormatException( "Bad block header at " + pos );
+	}
+}
+
+
+
@@ -0,0 +1,110 @@
+package huffman;
+
+
+
+/**
+ * Chooses where blocks end, so that each block has statistics of its own.
+ * One table spanning two kinds of data, like a JSON header and a binary body, codes both badly.
+ *
+ * The window is cut into segments of the minimum block size and each segment histogrammed once.
+ * Every run of consecutive segments is then priced as a single block: the entropy of its combined
+ * histogram plus the table and header it would need.  Dynamic programming finds the cheapest way to
+ * cover the window, so a boundary goes in only where separate tables save more than they cost.
+ * Homogeneous data stays in one block.
+ * @author Lee Coakley
+ */
+final class BlockSplitter
+{
+	private static final double log2 = Math.log( 2 );
+
+
+
+	/**
+	 * @return Lengths of the blocks to code src[offs,offs+len) as, in order.
+	 *         All but the last are multiples of segmentSize.
+	 */
+	static int[] split( byte[] src, int offs, int len, int segmentSize ) {
+		int segments = (int) ((len + (long) segmentSize - 1) / segmentSize);
+
+		if (segments <= 1)
+			return new int[] { len };
+
+		// prefix[s*256 + b] is the count of byte b in segments [0,s)
+		int[] prefix = new int[ (segments + 1) * 256 ];
+		int[] hist   = new int[ 256 ];
+		int[] lanes  = new int[ 256 * FrequencyAnalyser.laneCount ];
+
+		for (int s=0; s<segments; s++) {
+			int start = s * segmentSize;
+			FrequencyAnalyser.countFrequencies( src, offs + start, Math.min(segmentSize, len - start), hist, lanes );
+
+			for (int b=0; b<256; b++)
+				prefix[ (s+1)*256 + b ] = prefix[ s*256 + b ] + hist[b];
+		}
+
+		double[] best = new double[ segments + 1 ]; // Cheapest cover of segments [0,j)
+		int[]    from = new int   [ segments + 1 ]; // Where its last block starts
+
+		for (int j=1; j<=segments; j++) {
+			best[j] = Double.MAX_VALUE;
+
+			for (int i=0; i<j; i++) { // Earliest start wins ties, which means fewer blocks
+				double cost = best[i] + getCost( prefix, i, j );
+
+				if (cost < best[j]) {
+					best[j] = cost;
+					from[j] = i;
+				}
+			}
+		}
+
+		int count = 0;
+
+		for (int j=segments; j>0; j=from[j])
+			count++;
+
+		int[] lengths = new int[ count ];
+		int   end     = len;
+
+		for (int j=segments; j>0; j=from[j]) {
+			int start = from[j] * segmentSize;
+			lengths[ --count ] = end - start;
+			end = start;
+		}
+
+		return lengths;
+	}
+
+
+
+	/**
+	 * Predicted size in bits of coding segments [i,j) as one block.
+	 */
+	private static double getCost( int[] prefix, int i, int j ) {
+		long   total   = 0;
+		int    symbols = 0;
+		int    highest = 0;
+		double sum     = 0; // Sum of c * log2(c)
+
+		for (int b=0; b<256; b++) {
+			int c = prefix[ j*256 + b ] - prefix[ i*256 + b ];
+
+			if (c == 0)
+				continue;
+
+			total  += c;
+			symbols++;
+			highest = Math.max( highest, c );
+			sum    += c * Math.log( c );
+		}
+
+		double codeBits  = (total * Math.log(total) - sum) / log2;
+		int    freqBits  = 32 - Integer.numberOfLeadingZeros( highest );
+		long   tableBits = HuffTable.headerBits + (long) symbols * (HuffTable.elemIndexBits + freqBits);
+
+		return codeBits + tableBits + (BlockCoder.headerBytes * 8);
+	}
+}
+
+
+
@@ -0,0 +1,59 @@
+package huffman;
+
+
+
+/**
+ * A lossless entropy coder.
+ * Output of compress() is self-describing: decompress() needs nothing but the compressed bytes.
+ * Implementations are stateless and safe to share between threads.
+ * @author Lee Coakley
+ */
+public interface Codec
+{
+	/**
+	 * Compress all of the data.
+	 */
+	public byte[] compress( byte[] data );
+
+
+
+	/**
+	 * Decompress data produced by compress().
+	 */
+	public byte[] decompress( byte[] data );
+
+
+
+	/**
+	 * Compress src[offs,offs+len) into dst starting at dstOffs.
+	 * dst must have at least compressBound(len) bytes of room.
+	 * @return Number of bytes written.
+	 */
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs );
+
+
+
+	/**
+	 * Decompress src[offs,offs+len) into dst starting at dstOffs.
+	 * dst must have at least getDecompressedLength() bytes of room.
+	 * @return Number of bytes written.
+	 */
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs );
+
+
+
+	/**
+	 * Upper bound on the compressed size of len bytes.
+	 */
+	public int compressBound( int len );
+
+
+
+	/**
+	 * Exact decompressed size of compressed data, read from its header.
+	 */
+	public int getDecompressedLength( byte[] src, int offs, int len );
+}
+
+
+
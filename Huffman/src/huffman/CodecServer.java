@@ -0,0 +1,399 @@
+package huffman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+
+/**
+ * Embeddable HTTP server for services that can't link the codec, bound to localhost only.
+ *
+ * 		POST /compress    Request body compressed to the BlockCoder format.
+ * 		POST /decompress  Request body decompressed.  400 if corrupt, 413 if over the limits.
+ * 		GET  /stats       Per-endpoint latency histograms as text.
+ *
+ * Bodies are streamed through a Compressor or Decompressor, never held whole, so memory per request is
+ * bounded by the block size.  Each exchange runs on its own thread: a virtual thread where the runtime
+ * has them, otherwise a pooled platform thread.  Coding is CPU-bound while I/O isn't, so each call into
+ * the coder takes a permit from a semaphore sized to the cores.  Any number of slow connections can
+ * then be open while at most one thread per core codes.
+ *
+ * The response status is sent with the first output, so an error before then gets a proper status.
+ * An error after output has started aborts the connection, and the client sees a truncated body.
+ * @author Lee Coakley
+ */
+public class CodecServer
+{
+	public static final int          defaultPort   = 8470;
+	public static final DecodeLimits defaultLimits = new DecodeLimits( 1L << 30, Double.POSITIVE_INFINITY );
+
+	private static final int ioBufferSize = 64 * 1024;
+
+	private final HttpServer       server;
+	private final ExecutorService  executor;
+	private final Semaphore        cpuPermits;
+	private final BlockCoder       coder;
+	private final DecodeLimits     limits;
+	private final LatencyHistogram compressLatency   = new LatencyHistogram();
+	private final LatencyHistogram decompressLatency = new LatencyHistogram();
+
+
+
+	/**
+	 * @param port Port on the loopback address, or 0 for any free one.  See getPort().
+	 */
+	public CodecServer( int port ) throws IOException {
+		this( port, new BlockCoder(), defaultLimits, Runtime.getRuntime().availableProcessors() );
+	}
+
+
+
+	/**
+	 * @param limits     Applied to every decompression request.
+	 * @param cpuThreads Most requests coding at once.
+	 */
+	public CodecServer( int port, BlockCoder coder, DecodeLimits limits, int cpuThreads ) throws IOException {
+		if (cpuThreads < 1)
+			throw new IllegalArgumentException( "Bad CPU thread count: " + cpuThreads );
+
+		this.coder      = coder;
+		this.limits     = limits;
+		this.cpuPermits = new Semaphore( cpuThreads );
+		this.executor   = newThreadPerTaskExecutor();
+		this.server     = HttpServer.create( new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0 );
+
+		server.setExecutor( executor );
+
+		server.createContext( "/compress", new HttpHandler() {
+			public void handle( HttpExchange ex ) throws IOException {
+				serveCoding( ex, true );
+			}
+		});
+
+		server.createContext( "/decompress", new HttpHandler() {
+			public void handle( HttpExchange ex ) throws IOException {
+				serveCoding( ex, false );
+			}
+		});
+
+		server.createContext( "/stats", new HttpHandler() {
+			public void handle( HttpExchange ex ) throws IOException {
+				serveStats( ex );
+			}
+		});
+	}
+
+
+
+	public static void main( String[] args ) throws IOException {
+		int port      = defaultPort;
+		int blockSize = Integer.MIN_VALUE; // Not given: the level's own
+		int level     = BlockCoder.defaultLevel;
+
+		try {
+			for (int i=0; i<args.length; i++) {
+				if      (args[i].equals( "-port"  )) port      = getIntArg( args, ++i );
+				else if (args[i].equals( "-block" )) blockSize = getBlockSizeArg( args, ++i );
+				else if (args[i].equals( "-level" )) level     = getIntArg( args, ++i );
+				else throw new IllegalArgumentException( "Unknown option: " + args[i] );
+			}
+
+			BlockCoder  coder = (blockSize != Integer.MIN_VALUE) ? new BlockCoder( blockSize, level ) : BlockCoder.forLevel( level );
+			CodecServer cs    = new CodecServer( port, coder, defaultLimits, Runtime.getRuntime().availableProcessors() );
+			cs.start();
+			System.err.println( "Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + cs.getPort() );
+		}
+		catch (IllegalArgumentException ex) {
+			System.err.println( "Error: " + ex.getMessage() );
+			System.err.println( "Usage: CodecServer [-port n] [-block kb] [-level " + BlockCoder.minLevel + "-" + BlockCoder.maxLevel + "]" );
+			System.exit( 2 );
+		}
+	}
+
+
+
+	public void start() {
+		server.start();
+	}
+
+
+
+	/**
+	 * Stop accepting connections, give exchanges in progress up to delaySeconds to finish, then stop.
+	 */
+	public void stop( int delaySeconds ) {
+		server.stop( delaySeconds );
+		executor.shutdownNow();
+	}
+
+
+
+	/**
+	 * The port actually bound, which is useful when constructed with port 0.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+
+
+	public LatencyHistogram getCompressLatency() {
+		return compressLatency;
+	}
+
+
+
+	public LatencyHistogram getDecompressLatency() {
+		return decompressLatency;
+	}
+
+
+
+	private void serveCoding( HttpExchange ex, boolean compress ) throws IOException {
+		long     start = System.nanoTime();
+		Response out   = new Response( ex );
+
+		try {
+			if ( ! ex.getRequestMethod().equals( "POST" )) {
+				sendError( ex, 405, "POST only" );
+				return;
+			}
+
+			try (InputStream in = ex.getRequestBody()) {
+				if (compress)
+					 compress  ( in, out );
+				else decompress( in, out );
+			}
+
+			out.finish();
+			ex.close();
+		}
+		catch (HuffFormatException | HuffLimitException err) {
+			if (out.started)
+				throw err; // Unclosed, so the server drops the connection and the body can't look complete
+
+			sendError( ex, (err instanceof HuffLimitException) ? 413 : 400, err.getMessage() );
+		}
+		finally {
+			(compress ? compressLatency : decompressLatency).record( System.nanoTime() - start );
+		}
+	}
+
+
+
+	private void compress( InputStream in, Response out ) throws IOException {
+		Compressor c      = new Compressor( coder );
+		byte[]     input  = new byte[ ioBufferSize ];
+		byte[]     output = new byte[ ioBufferSize ];
+
+		for (int n; (n = in.read(input)) >= 0; ) {
+			c.setInput( input, 0, n );
+
+			while ( ! c.needsInput())
+				out.write( output, compressStep(c, output) );
+		}
+
+		c.finish();
+
+		while ( ! c.finished())
+			out.write( output, compressStep(c, output) );
+	}
+
+
+
+	private void decompress( InputStream in, Response out ) throws IOException {
+		Decompressor d      = new Decompressor( limits );
+		byte[]       input  = new byte[ ioBufferSize ];
+		byte[]       output = new byte[ ioBufferSize ];
+		boolean      atEnd  = false;
+
+		while ( ! d.finished()) {
+			if (d.needsInput() && ! atEnd) {
+				int n = in.read( input );
+
+				if (n < 0) {
+					atEnd = true;
+					d.finish();
+					continue;
+				}
+
+				d.setInput( input, 0, n );
+			}
+
+			int n = decompressStep( d, output );
+
+			if (n == 0 && atEnd && ! d.finished())
+				throw new HuffFormatException( "Truncated stream" );
+
+			out.write( output, n );
+		}
+	}
+
+
+
+	private int compressStep( Compressor c, byte[] output ) throws IOException {
+		acquire();
+
+		try {
+			return c.compress( output );
+		}
+		finally {
+			cpuPermits.release();
+		}
+	}
+
+
+
+	private int decompressStep( Decompressor d, byte[] output ) throws IOException {
+		acquire();
+
+		try {
+			return d.decompress( output );
+		}
+		finally {
+			cpuPermits.release();
+		}
+	}
+
+
+
+	private void acquire() throws IOException {
+		try {
+			cpuPermits.acquire();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted waiting to code" );
+		}
+	}
+
+
+
+	private void serveStats( HttpExchange ex ) throws IOException {
+		try {
+			String text = "compress   " + compressLatency   + "\n"
+				        + "decompress " + decompressLatency + "\n";
+
+			byte[] body = text.getBytes( StandardCharsets.UTF_8 );
+			ex.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" );
+			ex.sendResponseHeaders( 200, body.length );
+			ex.getResponseBody().write( body );
+		}
+		finally {
+			ex.close();
+		}
+	}
+
+
+
+	private static void sendError( HttpExchange ex, int status, String message ) throws IOException {
+		byte[] body = (message + "\n").getBytes( StandardCharsets.UTF_8 );
+
+		try {
+			ex.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" );
+			ex.sendResponseHeaders( status, body.length );
+			ex.getResponseBody().write( body );
+		}
+		finally {
+			ex.close();
+		}
+	}
+
+
+
+	/**
+	 * One thread per exchange.  Virtual threads need JDK 21, so they're looked up rather than linked.
+	 */
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		}
+		catch (ReflectiveOperationException ex) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+
+
+	private static int getIntArg( String[] args, int i ) {
+		if (i >= args.length)
+			throw new IllegalArgumentException( "Missing value for " + args[i-1] );
+
+		return Integer.parseInt( args[i] );
+	}
+
+
+
+	/**
+	 * @return Block size in bytes, from a value given in kilobytes.
+	 */
+	private static int getBlockSizeArg( String[] args, int i ) {
+		int kb = getIntArg( args, i );
+
+		if (kb <= 0 || kb > Integer.MAX_VALUE / 1024)
+			throw new IllegalArgumentException( "Bad block size: " + kb + " kb" );
+
+		return kb * 1024;
+	}
+
+
+
+	/**
+	 * Chunked response body whose 200 status is only sent with the first byte of output.
+	 */
+	private static final class Response
+	{
+		private final HttpExchange ex;
+		private OutputStream       out;
+		boolean                    started;
+
+
+
+		Response( HttpExchange ex ) {
+			this.ex = ex;
+		}
+
+
+
+		void write( byte[] b, int len ) throws IOException {
+			if (len == 0)
+				return;
+
+			start( 0 );
+			out.write( b, 0, len );
+		}
+
+
+
+		void finish() throws IOException {
+			start( -1 ); // No output at all: an empty body
+			out.close();
+		}
+
+
+
+		private void start( long length ) throws IOException {
+			if (started)
+				return;
+
+			ex.getResponseHeaders().set( "Content-Type", "application/octet-stream" );
+			ex.sendResponseHeaders( 200, length );
+			out     = ex.getResponseBody();
+			started = true;
+		}
+	}
+}
+
+
+
@@ -0,0 +1,291 @@
+package huffman;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Flow.Processor around an incremental coder, for reactive pipelines with backpressure.
+ *
+ * All coding runs on the executor, never on the publisher's or subscriber's thread: signals only queue
+ * their data and schedule a drain.  Drains are serialised, so the coder is only ever used by one thread
+ * at a time.  While downstream has demand, upstream is asked for up to a fixed number of buffers ahead,
+ * topped up as the coder takes them, so at most that many are ever queued and a publisher of small buffers
+ * isn't held to one round trip per buffer.  Each output buffer emitted uses one unit of downstream demand.
+ * Small upstream buffers are collected into whole blocks by the coder before anything is emitted.
+ *
+ * Coding errors cancel upstream and are passed downstream with onError().  Accepts one subscriber.
+ * @author Lee Coakley
+ */
+abstract class CodingProcessor implements Flow.Processor<ByteBuffer,ByteBuffer>
+{
+	static final int                                    prefetch = 16; // Upstream buffers requested ahead
+
+	private final Executor                              executor;
+	private final byte[]                                output;
+	private final ConcurrentLinkedQueue<ByteBuffer>     queue  = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong                            demand = new AtomicLong();
+	private final AtomicInteger                         wip    = new AtomicInteger(); // Drains requested and not yet run
+
+	private volatile Flow.Subscription                  upstream;
+	private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+	private volatile boolean                            upstreamDone;
+	private volatile Throwable                          error;
+	private volatile boolean                            cancelled;
+
+	private int                                         outstanding; // Requested from upstream and not yet taken.  Drain thread only from here down
+	private boolean                                     finishing;
+	private boolean                                     done;
+	private byte[]                                      copyBuffer;
+
+
+
+	/**
+	 * @param outputSize Largest buffer emitted downstream.
+	 */
+	CodingProcessor( Executor executor, int outputSize ) {
+		if (outputSize < 1)
+			throw new IllegalArgumentException( "Bad output size: " + outputSize );
+
+		this.executor = executor;
+		this.output   = new byte[ outputSize ];
+	}
+
+
+
+	/**
+	 * Give the coder more input.  The array is only read until needsInput() returns true.
+	 */
+	abstract void setInput( byte[] b, int offs, int len );
+
+	abstract boolean needsInput();
+
+	abstract void finish();
+
+	abstract boolean finished();
+
+	/**
+	 * @return Bytes of output written.  Zero means more input is needed, or the coder is finished.
+	 */
+	abstract int code( byte[] b );
+
+
+
+	public synchronized void subscribe( Flow.Subscriber<? super ByteBuffer> subscriber ) {
+		if (downstream != null) {
+			subscriber.onSubscribe( new Flow.Subscription() {
+				public void request( long n ) {}
+				public void cancel() {}
+			});
+
+			subscriber.onError( new IllegalStateException("Already has a subscriber") );
+			return;
+		}
+
+		subscriber.onSubscribe( new Downstream() );
+		downstream = subscriber;
+		signal();
+	}
+
+
+
+	public void onSubscribe( Flow.Subscription subscription ) {
+		if (upstream != null || cancelled) {
+			subscription.cancel();
+			return;
+		}
+
+		upstream = subscription;
+		signal();
+	}
+
+
+
+	public void onNext( ByteBuffer item ) {
+		queue.add( item );
+		signal();
+	}
+
+
+
+	public void onError( Throwable ex ) {
+		error = ex;
+		signal();
+	}
+
+
+
+	public void onComplete() {
+		upstreamDone = true;
+		signal();
+	}
+
+
+
+	/**
+	 * Run a drain on the executor unless one is already going, in which case it goes round again.
+	 */
+	private void signal() {
+		if (wip.getAndIncrement() == 0)
+			executor.execute( new Runnable() {
+				public void run() {
+					int missed = 1;
+
+					do {
+						drain();
+						missed = wip.addAndGet( -missed );
+					} while (missed != 0);
+				}
+			});
+	}
+
+
+
+	private void drain() {
+		if (done)
+			return;
+
+		if (cancelled) {
+			done = true;
+			queue.clear();
+
+			if (upstream != null)
+				upstream.cancel();
+
+			return;
+		}
+
+		Flow.Subscriber<? super ByteBuffer> sub = downstream;
+		Flow.Subscription                   up  = upstream;
+
+		if (sub == null || up == null)
+			return;
+
+		if (error != null) {
+			done = true;
+			up.cancel();
+			sub.onError( error );
+			return;
+		}
+
+		try {
+			while (demand.get() > 0 && ! cancelled) {
+				int n = code( output );
+
+				if (n > 0) {
+					demand.decrementAndGet();
+					sub.onNext( ByteBuffer.wrap(Arrays.copyOf(output, n)) );
+					continue;
+				}
+
+				if ( ! takeInput() && ! startFinish())
+					break;
+			}
+
+			startFinish(); // Even without demand, so a stream with nothing left to emit can complete
+
+			if (finishing && finished()) {
+				done = true;
+				sub.onComplete();
+				return;
+			}
+
+			if ( ! upstreamDone && demand.get() > 0 && outstanding <= prefetch / 2) {
+				up.request( prefetch - outstanding );
+				outstanding = prefetch;
+			}
+		}
+		catch (RuntimeException ex) {
+			done = true;
+			up.cancel();
+			sub.onError( ex );
+		}
+	}
+
+
+
+	/**
+	 * Tell the coder no more input is coming, once upstream has completed and everything it sent is taken.
+	 * @return True if this call did.
+	 */
+	private boolean startFinish() {
+		if (finishing || ! upstreamDone || ! queue.isEmpty() || ! needsInput())
+			return false;
+
+		finish();
+		finishing = true;
+		return true;
+	}
+
+
+
+	/**
+	 * Hand the next queued buffer to the coder, if it has used up the last one.
+	 * @return True if it was given one.
+	 */
+	private boolean takeInput() {
+		if ( ! needsInput())
+			return false;
+
+		ByteBuffer buf = queue.poll();
+
+		if (buf == null)
+			return false;
+
+		outstanding--;
+		int len = buf.remaining();
+
+		if (buf.hasArray())
+			setInput( buf.array(), buf.arrayOffset() + buf.position(), len );
+		else {
+			if (copyBuffer == null || copyBuffer.length < len)
+				copyBuffer = new byte[ Math.max(len, 4096) ];
+
+			buf.duplicate().get( copyBuffer, 0, len );
+			setInput( copyBuffer, 0, len );
+		}
+
+		return true;
+	}
+
+
+
+	private final class Downstream implements Flow.Subscription
+	{
+		public void request( long n ) {
+			if (n <= 0) {
+				error = new IllegalArgumentException( "Bad request: " + n ); // Reactive Streams rule 3.9
+				signal();
+				return;
+			}
+
+			long prev, next;
+
+			do {
+				prev = demand.get();
+				next = prev + n;
+
+				if (next < 0) // Overflowed: effectively unbounded
+					next = Long.MAX_VALUE;
+			} while ( ! demand.compareAndSet(prev, next));
+
+			signal();
+		}
+
+
+
+		public void cancel() {
+			cancelled = true;
+			signal();
+		}
+	}
+}
+
+
+
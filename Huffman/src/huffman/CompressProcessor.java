@@ -0,0 +1,63 @@
+package huffman;
+
+import java.util.concurrent.Executor;
+
+
+
+/**
+ * Flow.Processor that compresses a stream of ByteBuffers into the BlockCoder format.
+ * Upstream buffers of any size are collected into whole blocks, and each coded window is emitted as one buffer.
+ * Output decodes with DecompressProcessor, Decompressor or BlockCoder.
+ * See CodingProcessor for threading and demand.
+ * @author Lee Coakley
+ */
+public class CompressProcessor extends CodingProcessor
+{
+	private final Compressor compressor;
+
+
+
+	public CompressProcessor( Executor executor ) {
+		this( new BlockCoder(), executor );
+	}
+
+
+
+	public CompressProcessor( BlockCoder coder, Executor executor ) {
+		super( executor, coder.compressBound(coder.getBlockSize()) );
+		this.compressor = new Compressor( coder );
+	}
+
+
+
+	void setInput( byte[] b, int offs, int len ) {
+		compressor.setInput( b, offs, len );
+	}
+
+
+
+	boolean needsInput() {
+		return compressor.needsInput();
+	}
+
+
+
+	void finish() {
+		compressor.finish();
+	}
+
+
+
+	boolean finished() {
+		return compressor.finished();
+	}
+
+
+
+	int code( byte[] b ) {
+		return compressor.compress( b );
+	}
+}
+
+
+
@@ -0,0 +1,239 @@
+package huffman;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+
+
+/**
+ * Read-only byte array held Huffman coded in memory, with random access.
+ *
+ * The data is split into segments of a fixed number of bytes, all coded with one table built from the
+ * whole array.  Each segment's codes start on a byte boundary, and a checkpoint records where, so any byte
+ * is reached by decoding at most one segment.  The padding costs under a byte per segment and the checkpoint
+ * four more, so with the default interval the coded size is within 1% of plain HuffCoder output.
+ *
+ * Recently decoded segments are kept in a small direct-mapped cache, so sequential reads decode each
+ * segment once.  Each slot decodes into its own buffer, allocated once, so reading allocates nothing.
+ * Reads from a slot are optimistic and lock-free, and retry under the slot's lock only if it changed
+ * meanwhile; decoding into a slot takes the lock.  Thread-safe.
+ * @author Lee Coakley
+ */
+public class CompressedByteArray
+{
+	public static final int defaultInterval   = 1024;
+	public static final int defaultCacheSlots = 8;
+
+	private final HuffDecoder decoder;
+	private final byte[]      codes;
+	private final int[]       checkpoints; // Segment -> offset of its codes, with one extra for the end
+	private final int         interval;
+	private final int         length;
+	private final Slot[]      cache;
+
+
+
+	public CompressedByteArray( byte[] data ) {
+		this( data, 0, data.length, defaultInterval, defaultCacheSlots );
+	}
+
+
+
+	/**
+	 * @param interval   Bytes per segment.  Smaller makes single reads cheaper and costs about 5 bytes per segment.
+	 * @param cacheSlots Decoded segments kept, each holding interval bytes.
+	 */
+	public CompressedByteArray( byte[] src, int offs, int len, int interval, int cacheSlots ) {
+		if (interval < 1)
+			throw new IllegalArgumentException( "Bad interval: " + interval );
+
+		if (cacheSlots < 1)
+			throw new IllegalArgumentException( "Bad cache slot count: " + cacheSlots );
+
+		int segments = (len + interval - 1) / interval;
+
+		this.interval    = interval;
+		this.length      = len;
+		this.cache       = new Slot[ cacheSlots ];
+		this.checkpoints = new int[ segments + 1 ];
+
+		for (int i=0; i<cacheSlots; i++)
+			cache[i] = new Slot( Math.min(interval, len) );
+
+		if (len == 0) {
+			decoder = null;
+			codes   = new byte[ 0 ];
+			return;
+		}
+
+		HuffWorkspace ws      = HuffWorkspace.get();
+		long          bound   = (long) ws.analyse( src, offs, len ) - ws.getTableSize() + segments;
+		HuffEncoder   encoder = ws.toEncoder();
+
+		if (bound > Integer.MAX_VALUE)
+			throw new IllegalArgumentException( "Too large to code: " + len + " bytes" );
+
+		decoder = ws.toDecoder();
+
+		byte[] out = new byte[ (int) bound ];
+		int    pos = 0;
+
+		for (int s=0; s<segments; s++) {
+			int start = s * interval;
+			checkpoints[s] = pos;
+			pos += encoder.encode( src, offs + start, Math.min(interval, len - start), out, pos );
+		}
+
+		checkpoints[segments] = pos;
+		codes = Arrays.copyOf( out, pos );
+	}
+
+
+
+	public int length() {
+		return length;
+	}
+
+
+
+	public byte get( int index ) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException( "Index " + index + " outside [0," + length + ")" );
+
+		int  s     = index / interval;
+		Slot slot  = getSlot( s );
+		long stamp = slot.lock.tryOptimisticRead();
+
+		if (slot.index == s) {
+			byte b = slot.bytes[ index % interval ];
+
+			if (slot.lock.validate( stamp ))
+				return b;
+		}
+
+		stamp = slot.lock.writeLock();
+
+		try {
+			load( slot, s );
+			return slot.bytes[ index % interval ];
+		}
+		finally {
+			slot.lock.unlockWrite( stamp );
+		}
+	}
+
+
+
+	/**
+	 * Copy len bytes starting at index into dst.
+	 */
+	public void get( int index, byte[] dst, int dstOffs, int len ) {
+		if (index < 0 || len < 0 || index > length - len)
+			throw new IndexOutOfBoundsException( "Range [" + index + "," + ((long) index + len) + ") outside [0," + length + ")" );
+
+		int written = 0;
+
+		while (written < len) {
+			int  pos   = index + written;
+			int  s     = pos / interval;
+			int  from  = pos % interval;
+			int  n     = Math.min( len - written, getSegmentLength(s) - from );
+			Slot slot  = getSlot( s );
+			long stamp = slot.lock.tryOptimisticRead();
+
+			if (slot.index == s)
+				System.arraycopy( slot.bytes, from, dst, dstOffs + written, n );
+
+			if (slot.index != s || ! slot.lock.validate( stamp )) {
+				stamp = slot.lock.writeLock();
+
+				try {
+					load( slot, s );
+					System.arraycopy( slot.bytes, from, dst, dstOffs + written, n );
+				}
+				finally {
+					slot.lock.unlockWrite( stamp );
+				}
+			}
+
+			written += n;
+		}
+	}
+
+
+
+	/**
+	 * Decode the whole array.  Bypasses the cache.
+	 */
+	public byte[] toByteArray() {
+		byte[] out = new byte[ length ];
+
+		for (int s=0; s<checkpoints.length-1; s++)
+			decodeSegment( s, out, s * interval );
+
+		return out;
+	}
+
+
+
+	/**
+	 * Bytes held for the data: the codes plus the checkpoints.
+	 * The decode table and cache are extra, and don't grow with the data.
+	 */
+	public long getCompressedSize() {
+		return codes.length + checkpoints.length * 4L;
+	}
+
+
+
+	private Slot getSlot( int s ) {
+		return cache[ s % cache.length ];
+	}
+
+
+
+	/**
+	 * Make the slot hold segment s, decoding it if it doesn't already.  The caller holds the slot's write lock.
+	 */
+	private void load( Slot slot, int s ) {
+		if (slot.index != s) {
+			slot.index = -1; // Stays invalid if decoding throws
+			decodeSegment( s, slot.bytes, 0 );
+			slot.index = s;
+		}
+	}
+
+
+
+	private int getSegmentLength( int s ) {
+		return Math.min( interval, length - s * interval );
+	}
+
+
+
+	private void decodeSegment( int s, byte[] dst, int dstOffs ) {
+		decoder.decode( codes, checkpoints[s], checkpoints[s + 1], dst, dstOffs, getSegmentLength(s) );
+	}
+
+
+
+	/**
+	 * A cache slot: a buffer for one decoded segment, and which segment it holds.  Written only under
+	 * the lock; read optimistically, and the read kept only if the lock's stamp still validates.
+	 */
+	private static final class Slot
+	{
+		final StampedLock lock = new StampedLock();
+		final byte[]      bytes;
+		int               index = -1;
+
+
+
+		Slot( int size ) {
+			this.bytes = new byte[ size ];
+		}
+	}
+}
+
+
+
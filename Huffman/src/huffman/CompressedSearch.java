@@ -0,0 +1,363 @@
+package huffman;
+
+import java.util.Arrays;
+
+
+
+/**
+ * Finds byte strings in HuffCoder data without decompressing it.
+ *
+ * The pattern is coded with the stream's own codes, and the code stream is searched for those bits at
+ * every bit alignment.  For patterns of 15 bits or more, one byte of the pattern is fully contained in
+ * the stream for each alignment, so a single pass over the compressed bytes with a 256-entry table finds
+ * every candidate.  Only candidates are compared bit for bit.
+ *
+ * A bit match is only a real one if it starts on a code boundary.  That's checked by a cursor which
+ * steps through codes counting symbols, without writing any output, up to the candidate.  The cursor only
+ * moves forward, so the total decoding work is never more than the distance to the last candidate checked.
+ * Patterns too short to anchor are compared at each code boundary as the cursor passes it.
+ * A pattern containing a byte the table has no code for is rejected without reading the codes at all.
+ *
+ * Construct once per stream and search as often as needed.  Thread-safe.
+ * @author Lee Coakley
+ */
+public class CompressedSearch
+{
+	private static final int anchorMinBits = 15; // Enough for a whole byte at every alignment
+
+	private final HuffWorkspace ws; // Shared read-only
+	private final HuffEncoder   encoder;
+	private final byte[]        src;
+	private final int           codeStart;
+	private final int           codeEnd;
+	private final int           size;
+
+
+
+	/**
+	 * @param src HuffCoder data.  Referenced, not copied: it mustn't change while searches run.
+	 * @throws HuffFormatException if the table is malformed.
+	 */
+	public CompressedSearch( byte[] src, int offs, int len ) {
+		this.src = src;
+
+		if (len == 0) {
+			ws        = null;
+			encoder   = null;
+			codeStart = offs;
+			codeEnd   = offs;
+			size      = 0;
+			return;
+		}
+
+		ws = new HuffWorkspace();
+
+		int  tableSize = ws.readTable( src, offs, len );
+		long decoded   = ws.getDecodedLength();
+
+		if (decoded > Integer.MAX_VALUE)
+			throw new HuffFormatException( "Decoded size too large: " + decoded );
+
+		codeStart = offs + tableSize;
+		codeEnd   = offs + len;
+		size      = (int) decoded;
+		encoder   = ws.toEncoder();
+
+		ws.checkCodeSpace( size, codeEnd - codeStart );
+	}
+
+
+
+	public CompressedSearch( byte[] src ) {
+		this( src, 0, src.length );
+	}
+
+
+
+	/**
+	 * Length of the decoded data.
+	 */
+	public int getDecodedLength() {
+		return size;
+	}
+
+
+
+	public boolean contains( byte[] pattern ) {
+		return indexOf( pattern ) >= 0;
+	}
+
+
+
+	/**
+	 * @return Offset in the decoded data of the first occurrence, or -1 if there's none.
+	 * @throws HuffFormatException if an invalid code is met before the first match.
+	 */
+	public int indexOf( byte[] pattern ) {
+		int[] found = search( pattern, 1 );
+		return (found.length > 0) ? found[0] : -1;
+	}
+
+
+
+	/**
+	 * @return Offsets in the decoded data of every occurrence in order, overlapping ones included.
+	 * @throws HuffFormatException if an invalid code is met before the last candidate.
+	 */
+	public int[] findAll( byte[] pattern ) {
+		return search( pattern, Integer.MAX_VALUE );
+	}
+
+
+
+	private int[] search( byte[] pattern, int maxResults ) {
+		if (pattern.length == 0)
+			throw new IllegalArgumentException( "Empty pattern" );
+
+		if (size < pattern.length)
+			return new int[ 0 ];
+
+		long bits = 0;
+
+		for (byte b: pattern) {
+			int codeLen = encoder.getCodeLength( b );
+
+			if (codeLen == 0)
+				return new int[ 0 ]; // Not in the data at all
+
+			bits += codeLen;
+		}
+
+		if (bits > Integer.MAX_VALUE - 7)
+			throw new IllegalArgumentException( "Pattern too long: " + pattern.length + " bytes" );
+
+		byte[] coded = new byte[ (int) ((bits + 7) / 8) ];
+		encoder.encode( pattern, 0, pattern.length, coded, 0 );
+
+		Matcher m = new Matcher( toWords(coded, (int) bits), (int) bits, pattern.length, maxResults );
+
+		if (bits >= anchorMinBits)
+			 m.scanAnchored( coded );
+		else m.advance( Long.MAX_VALUE, true );
+
+		return Arrays.copyOf( m.results, m.count );
+	}
+
+
+
+	/**
+	 * Split a coded bit string into 56-bit words, the last one right-aligned.
+	 */
+	private static long[] toWords( byte[] coded, int bits ) {
+		long[] words = new long[ (bits + 55) / 56 ];
+
+		for (int w=0; w<words.length; w++) {
+			int n = Math.min( 56, bits - w*56 );
+			words[w] = peek( coded, 0, coded.length, (long) w * 56, n );
+		}
+
+		return words;
+	}
+
+
+
+	/**
+	 * Read n bits, up to 57, starting bitPos bits into src[start,end).  Reads zeros past the end.
+	 */
+	private static long peek( byte[] src, int start, int end, long bitPos, int n ) {
+		int  pos = start + (int) (bitPos >>> 3);
+		long buf = 0;
+
+		for (int i=0; i<8; i++) {
+			int b = (pos + i < end) ? (src[pos + i] & 0xFF) : 0;
+			buf = (buf << 8) | b;
+		}
+
+		return (buf << (bitPos & 7)) >>> (64 - n);
+	}
+
+
+
+	/**
+	 * State of one search: the pattern's bits, the results so far, and the boundary-checking cursor.
+	 */
+	private final class Matcher
+	{
+		final long[] words;
+		final int    bits;
+		final int    patternLen;
+		final int    maxResults;
+		final long   streamBits = (codeEnd - codeStart) * 8L;
+
+		int[]        results = new int[ 16 ];
+		int          count;
+
+		long         cursorBit;   // A code boundary
+		int          cursorIndex; // Symbols before it
+		boolean      cursorDone;  // Reached the last symbol, or enough results
+
+
+
+		Matcher( long[] words, int bits, int patternLen, int maxResults ) {
+			this.words      = words;
+			this.bits       = bits;
+			this.patternLen = patternLen;
+			this.maxResults = maxResults;
+		}
+
+
+
+		/**
+		 * For each alignment, the first whole byte of the pattern in the stream goes in a table.
+		 * A match starting d bits before a byte boundary has its byte at pattern bit d, so finding that byte
+		 * at a stream position names the candidate start.
+		 */
+		void scanAnchored( byte[] coded ) {
+			int[] anchors = new int[ 256 ]; // Bit d set if the byte is the anchor for starts d bits before a boundary
+
+			for (int d=0; d<8; d++)
+				anchors[ (int) peek(coded, 0, coded.length, d, 8) ] |= 1 << d;
+
+			long lastStart = streamBits - bits;
+
+			for (int pos=codeStart; pos<codeEnd; pos++) {
+				int mask = anchors[ src[pos] & 0xFF ];
+
+				if (mask == 0)
+					continue;
+
+				long boundary = (long) (pos - codeStart) << 3;
+
+				for (int d=7; d>=0; d--) { // Earliest start first
+					if ((mask & (1 << d)) == 0)
+						continue;
+
+					long start = boundary - d;
+
+					if (start < 0)
+						continue;
+
+					if (start > lastStart || cursorDone)
+						return;
+
+					if (check( start ) && count >= maxResults)
+						return;
+				}
+			}
+		}
+
+
+
+		/**
+		 * Record a match if the pattern's bits are at start and it's a code boundary.
+		 * @return True if a match was recorded.
+		 */
+		boolean check( long start ) {
+			for (int w=0; w<words.length; w++) {
+				int n = Math.min( 56, bits - w*56 );
+
+				if (peek( src, codeStart, codeEnd, start + w*56L, n ) != words[w])
+					return false;
+			}
+
+			advance( start, false );
+
+			if (cursorBit != start || cursorDone)
+				return false;
+
+			record();
+			return true;
+		}
+
+
+
+		void record() {
+			if (cursorIndex > size - patternLen)
+				return;
+
+			if (count == results.length)
+				results = Arrays.copyOf( results, count * 2 );
+
+			results[ count++ ] = cursorIndex;
+
+			if (count >= maxResults)
+				cursorDone = true;
+		}
+
+
+
+		/**
+		 * Step through codes until reaching or passing the target bit.  Same kernel as HuffDecoder.decode(),
+		 * counting symbols instead of storing them.  With compare set, the pattern is checked at every boundary,
+		 * for patterns under 57 bits.
+		 */
+		void advance( long target, boolean compare ) {
+			int[] lookup   = ws.getLookup();
+			int[] children = ws.getChildren();
+			int   peekBits = ws.getPeekBits();
+			int   mask     = (1 << peekBits) - 1;
+			long  pattern  = words[0];
+			int   pos      = codeStart + (int) (cursorBit >>> 3);
+			int   avail    = -(int) (cursorBit & 7);
+			long  buf      = 0;
+
+			while ( ! cursorDone) {
+				while (avail <= 56) {
+					int b = (pos < codeEnd) ? (src[pos] & 0xFF) : 0;
+					buf    = (buf << 8) | b;
+					avail += 8;
+					pos++;
+				}
+
+				cursorBit = ((long) (pos - codeStart) << 3) - avail;
+
+				if (cursorBit >= target)
+					return;
+
+				if (cursorIndex == size) {
+					cursorDone = true;
+					return;
+				}
+
+				if (compare && ((buf << (64 - avail)) >>> (64 - bits)) == pattern) {
+					record();
+
+					if (cursorDone)
+						return;
+				}
+
+				int entry = lookup[ (int) (buf >>> (avail - peekBits)) & mask ];
+
+				if (entry > 0) {
+					avail -= entry >>> 16;
+					cursorIndex++;
+					continue;
+				}
+
+				if (entry == 0)
+					throw new HuffFormatException( "Invalid code at bit " + cursorBit );
+
+				int node = ~entry;
+				avail   -= peekBits;
+
+				for (;;) {
+					int bit   = (int) (buf >>> --avail) & 1;
+					int child = children[ node*2 + bit ];
+
+					if (child == HuffDecoder.invalid)
+						throw new HuffFormatException( "Invalid code at bit " + cursorBit );
+
+					if (child < 0)
+						break;
+
+					node = child;
+				}
+
+				cursorIndex++;
+			}
+		}
+	}
+}
+
+
+
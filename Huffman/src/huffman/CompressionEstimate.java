@@ -0,0 +1,103 @@
+package huffman;
+
+
+
+/**
+ * Predicted outcome of Huffman coding some data, without having coded it.
+ * Immutable.
+ * @author Lee Coakley
+ */
+public final class CompressionEstimate
+{
+	private final int     length;
+	private final double  entropy;
+	private final long    predictedSize;
+	private final boolean sampled;
+
+
+
+	public CompressionEstimate( int length, double entropy, long predictedSize, boolean sampled ) {
+		this.length        = length;
+		this.entropy       = entropy;
+		this.predictedSize = predictedSize;
+		this.sampled       = sampled;
+	}
+
+
+
+	/**
+	 * Number of input bytes the estimate covers.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+
+
+	/**
+	 * Shannon entropy of the byte distribution, in bits per byte.
+	 */
+	public double getEntropy() {
+		return entropy;
+	}
+
+
+
+	/**
+	 * Smallest size in bytes any order-0 coder could reach, ignoring table overhead.
+	 */
+	public long getEntropySize() {
+		return (long) Math.ceil( entropy * length / 8.0 );
+	}
+
+
+
+	/**
+	 * Predicted size of HuffCoder.encode() output in bytes, table included.
+	 * Exact unless the estimate was sampled.
+	 */
+	public long getPredictedSize() {
+		return predictedSize;
+	}
+
+
+
+	/**
+	 * Predicted size as a fraction of the input size.  Below 1 means it gets smaller.
+	 */
+	public double getRatio() {
+		if (length == 0)
+			return 1;
+
+		return predictedSize / (double) length;
+	}
+
+
+
+	/**
+	 * Check whether coding is predicted to save at least the given fraction of the input.
+	 * Example: isWorthCoding(0.05) needs a ratio of 0.95 or better.
+	 */
+	public boolean isWorthCoding( double minSaving ) {
+		return getRatio() <= (1.0 - minSaving);
+	}
+
+
+
+	/**
+	 * True if the estimate came from a sample rather than all of the data.
+	 */
+	public boolean isSampled() {
+		return sampled;
+	}
+
+
+
+	public String toString() {
+		return String.format( "%d bytes, %.3f bits/byte, predicted %d bytes (%.1f%%)%s",
+			length, entropy, predictedSize, getRatio() * 100, sampled ? ", sampled" : "" );
+	}
+}
+
+
+
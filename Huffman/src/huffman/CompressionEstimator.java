@@ -0,0 +1,99 @@
+package huffman;
+
+
+
+/**
+ * Predicts how well data will compress without producing any output.
+ * Only the histogram and code lengths are computed, which is much cheaper than encoding.
+ * @author Lee Coakley
+ */
+public final class CompressionEstimator
+{
+	private static final int sampleChunks = 16;
+
+
+
+	private CompressionEstimator() {}
+
+
+
+	/**
+	 * Exact estimate for all of the data.
+	 */
+	public static CompressionEstimate estimate( byte[] data ) {
+		return estimate( data, 0, data.length );
+	}
+
+
+
+	/**
+	 * Exact estimate for a range of the data.
+	 * The predicted size is exactly what HuffCoder.encode() would produce.
+	 */
+	public static CompressionEstimate estimate( byte[] data, int offs, int len ) {
+		if (len == 0)
+			return new CompressionEstimate( 0, 0, 0, false );
+
+		HuffWorkspace ws   = HuffWorkspace.get();
+		int           size = ws.analyse( data, offs, len );
+		double        ent  = getEntropy( ws.getHistogram(), len );
+
+		return new CompressionEstimate( len, ent, size, false );
+	}
+
+
+
+	/**
+	 * Estimate from evenly spaced samples totalling about sampleSize bytes.
+	 * The sampled histogram is scaled up to the full length before computing code lengths.
+	 * Ranges no larger than sampleSize get an exact estimate.
+	 */
+	public static CompressionEstimate estimateSampled( byte[] data, int offs, int len, int sampleSize ) {
+		if (len <= sampleSize)
+			return estimate( data, offs, len );
+
+		int   chunk   = Math.max( 1, sampleSize / sampleChunks );
+		int   stride  = len / sampleChunks;
+		int[] hist    = new int[ 256 ];
+		int   sampled = 0;
+
+		for (int i=0; i<sampleChunks; i++) {
+			int from = offs + (i * stride);
+			int size = Math.min( chunk, offs + len - from );
+			FrequencyAnalyser.addFrequencies( data, from, size, hist );
+			sampled += size;
+		}
+
+		double ent   = getEntropy( hist, sampled );
+		double scale = len / (double) sampled;
+
+		for (int i=0; i<hist.length; i++)
+			if (hist[i] > 0)
+				hist[i] = (int) Math.max( 1, Math.round(hist[i] * scale) );
+
+		int size = HuffWorkspace.get().analyse( hist );
+		return new CompressionEstimate( len, ent, size, true );
+	}
+
+
+
+	/**
+	 * Shannon entropy of a histogram in bits per symbol.
+	 */
+	public static double getEntropy( int[] hist, long total ) {
+		double ent = 0;
+
+		for (int f: hist) {
+			if (f == 0)
+				continue;
+
+			double p = f / (double) total;
+			ent -= p * (Math.log(p) / Math.log(2));
+		}
+
+		return ent;
+	}
+}
+
+
+
@@ -0,0 +1,231 @@
+package huffman;
+
+
+
+/**
+ * Incremental compressor in the style of java.util.zip.Deflater, for non-blocking callers.
+ * Input is pushed in fragments of any size and output pulled into the caller's buffer.
+ * Output is the BlockCoder format.
+ *
+ * Each call to compress() codes at most one window of blockSize bytes, which may be split into several
+ * blocks, so the work per call is bounded by the block size.
+ * Nothing ever blocks.  Typical use:
+ *
+ * 		compressor.setInput( frame );
+ * 		while ( ! compressor.needsInput())
+ * 			send( out, 0, compressor.compress(out) );
+ *
+ * 		compressor.finish();
+ * 		while ( ! compressor.finished())
+ * 			send( out, 0, compressor.compress(out) );
+ *
+ * Not thread-safe.  Use one per stream.
+ * @author Lee Coakley
+ */
+public class Compressor
+{
+	private final BlockCoder coder;
+	private final byte[]     block;   // Input collected for the next window
+	private final byte[]     pending; // Coded window not yet handed out
+	private final byte[]     scratch;
+	private final TableChain chain = new TableChain();
+
+	private byte[]  input;
+	private int     inputPos;
+	private int     inputEnd;
+	private int     blockFill;
+	private int     pendingPos;
+	private int     pendingEnd;
+	private boolean flushRequested;
+	private boolean finishRequested;
+	private long    totalIn;
+	private long    totalOut;
+
+
+
+	public Compressor() {
+		this( BlockCoder.defaultBlockSize );
+	}
+
+
+
+	public Compressor( int blockSize ) {
+		this( new BlockCoder(blockSize) );
+	}
+
+
+
+	public Compressor( BlockCoder coder ) {
+		this.coder   = coder;
+		this.block   = new byte[ coder.getBlockSize() ];
+		this.pending = new byte[ coder.compressBound(coder.getBlockSize()) ];
+		this.scratch = new byte[ coder.getScratchSize(coder.getBlockSize()) ];
+	}
+
+
+
+	/**
+	 * Set input for compression.  The array is referenced, not copied, until needsInput() returns true.
+	 */
+	public void setInput( byte[] b, int offs, int len ) {
+		if (finishRequested)
+			throw new IllegalStateException( "Already finished" );
+
+		input    = b;
+		inputPos = offs;
+		inputEnd = offs + len;
+	}
+
+
+
+	public void setInput( byte[] b ) {
+		setInput( b, 0, b.length );
+	}
+
+
+
+	/**
+	 * True when all input has been taken and all output for complete blocks handed out.
+	 */
+	public boolean needsInput() {
+		return inputPos == inputEnd
+			&& pendingPos == pendingEnd
+			&& ! isBlockReady();
+	}
+
+
+
+	/**
+	 * Emit a block for the input given so far, even if it isn't full, on the next calls to compress().
+	 * Everything passed in before the flush can then be decompressed from the output.
+	 */
+	public void flush() {
+		flushRequested = true;
+	}
+
+
+
+	/**
+	 * Signal that no more input is coming.
+	 */
+	public void finish() {
+		finishRequested = true;
+	}
+
+
+
+	/**
+	 * True once finish() was called and every byte of output has been handed out.
+	 */
+	public boolean finished() {
+		return finishRequested
+			&& inputPos   == inputEnd
+			&& pendingPos == pendingEnd
+			&& blockFill  == 0;
+	}
+
+
+
+	public int compress( byte[] b ) {
+		return compress( b, 0, b.length );
+	}
+
+
+
+	/**
+	 * Fill the buffer with compressed data.  Codes at most one window per call.
+	 * @return Number of bytes written.  Zero means more input, flush() or finish() is needed.
+	 */
+	public int compress( byte[] b, int offs, int len ) {
+		int     written = 0;
+		boolean coded   = false;
+
+		while (written < len) {
+			if (pendingPos < pendingEnd) {
+				int n = Math.min( len - written, pendingEnd - pendingPos );
+				System.arraycopy( pending, pendingPos, b, offs + written, n );
+				pendingPos += n;
+				written    += n;
+				continue;
+			}
+
+			fillBlock();
+
+			if ( ! isBlockReady() || coded)
+				break;
+
+			codeBlock();
+			coded = true;
+		}
+
+		totalOut += written;
+		return written;
+	}
+
+
+
+	/**
+	 * Start a new stream.  Any buffered input and output is discarded.
+	 */
+	public void reset() {
+		input           = null;
+		inputPos        = 0;
+		inputEnd        = 0;
+		blockFill       = 0;
+		pendingPos      = 0;
+		pendingEnd      = 0;
+		flushRequested  = false;
+		finishRequested = false;
+		totalIn         = 0;
+		totalOut        = 0;
+		chain.reset();
+	}
+
+
+
+	public long getBytesRead() {
+		return totalIn;
+	}
+
+
+
+	public long getBytesWritten() {
+		return totalOut;
+	}
+
+
+
+	private void fillBlock() {
+		int n = Math.min( inputEnd - inputPos, block.length - blockFill );
+
+		if (n <= 0)
+			return;
+
+		System.arraycopy( input, inputPos, block, blockFill, n );
+		inputPos  += n;
+		blockFill += n;
+		totalIn   += n;
+	}
+
+
+
+	private boolean isBlockReady() {
+		if (blockFill == block.length)
+			return true;
+
+		boolean drained = (inputPos == inputEnd);
+		return blockFill > 0 && drained && (flushRequested || finishRequested);
+	}
+
+
+
+	private void codeBlock() {
+		pendingPos     = 0;
+		pendingEnd     = coder.compressWindow( block, 0, blockFill, pending, 0, scratch, chain );
+		blockFill      = 0;
+		flushRequested = flushRequested && (inputPos < inputEnd);
+	}
+}
+
+
+
@@ -0,0 +1,68 @@
+package huffman;
+
+
+
+/**
+ * Caps on what decoding untrusted data may cost.
+ * Checked against the sizes declared in headers, before any output is allocated or decoded,
+ * so a tiny input claiming a huge output is rejected straight away.
+ *
+ * The expansion ratio is decoded bytes over compressed bytes.  Huffman coding can't exceed 8,
+ * since every code is at least one bit, and the decoders enforce that regardless of limits.
+ * tANS can legitimately exceed it on data that is nearly all one byte.
+ *
+ * Immutable.
+ * @author Lee Coakley
+ */
+public final class DecodeLimits
+{
+	public static final DecodeLimits unlimited = new DecodeLimits( Long.MAX_VALUE, Double.POSITIVE_INFINITY );
+
+	private final long   maxOutput;
+	private final double maxRatio;
+
+
+
+	/**
+	 * @param maxOutput Most bytes a stream may decode to.
+	 * @param maxRatio  Most decoded bytes per compressed byte.
+	 */
+	public DecodeLimits( long maxOutput, double maxRatio ) {
+		if (maxOutput < 0)
+			throw new IllegalArgumentException( "Bad max output: " + maxOutput );
+
+		if ( ! (maxRatio >= 1))
+			throw new IllegalArgumentException( "Bad max ratio: " + maxRatio );
+
+		this.maxOutput = maxOutput;
+		this.maxRatio  = maxRatio;
+	}
+
+
+
+	public long getMaxOutput() {
+		return maxOutput;
+	}
+
+
+
+	public double getMaxRatio() {
+		return maxRatio;
+	}
+
+
+
+	/**
+	 * @throws HuffLimitException if decoding compressed bytes to decoded bytes would exceed the limits.
+	 */
+	public void check( long decoded, long compressed ) {
+		if (decoded > maxOutput)
+			throw new HuffLimitException( "Output of " + decoded + " bytes exceeds limit of " + maxOutput );
+
+		if (decoded > maxRatio * Math.max( compressed, 1 ))
+			throw new HuffLimitException( "Expansion from " + compressed + " to " + decoded + " bytes exceeds ratio limit of " + maxRatio );
+	}
+}
+
+
+
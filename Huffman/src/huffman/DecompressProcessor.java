@@ -0,0 +1,69 @@
+package huffman;
+
+import java.util.concurrent.Executor;
+
+
+
+/**
+ * Flow.Processor that decompresses a stream of ByteBuffers in the BlockCoder format.
+ * Upstream buffers may split the stream anywhere.  Output is emitted in buffers of up to outputSize bytes.
+ * Corrupt or truncated input is passed downstream as a HuffFormatException, and excess size as a HuffLimitException.
+ * See CodingProcessor for threading and demand.
+ * @author Lee Coakley
+ */
+public class DecompressProcessor extends CodingProcessor
+{
+	public static final int defaultOutputSize = 64 * 1024;
+
+	private final Decompressor decompressor;
+
+
+
+	public DecompressProcessor( Executor executor ) {
+		this( DecodeLimits.unlimited, defaultOutputSize, executor );
+	}
+
+
+
+	/**
+	 * @param limits     Checked against each block header as it arrives.
+	 * @param outputSize Largest buffer emitted downstream.
+	 */
+	public DecompressProcessor( DecodeLimits limits, int outputSize, Executor executor ) {
+		super( executor, outputSize );
+		this.decompressor = new Decompressor( limits );
+	}
+
+
+
+	void setInput( byte[] b, int offs, int len ) {
+		decompressor.setInput( b, offs, len );
+	}
+
+
+
+	boolean needsInput() {
+		return decompressor.needsInput();
+	}
+
+
+
+	void finish() {
+		decompressor.finish();
+	}
+
+
+
+	boolean finished() {
+		return decompressor.finished();
+	}
+
+
+
+	int code( byte[] b ) {
+		return decompressor.decompress( b );
+	}
+}
+
+
+
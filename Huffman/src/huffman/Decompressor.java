@@ -0,0 +1,478 @@
+package huffman;
+import java.util.Arrays;
+
+
+
+/**
+ * Incremental decompressor for the BlockCoder format in the style of java.util.zip.Inflater.
+ * Input may be pushed in fragments of any size, split anywhere: inside a block header, a table or a code.
+ * Huffman and stored blocks decode straight into the caller's buffer and resume exactly where they stopped.
+ * tANS blocks decode backwards-dependent state, so their payload is collected first and decoded in one go.
+ * Byte-pair blocks are collected too, as a code may end halfway through a pair.
+ *
+ * Each call to decompress() does work bounded by the output buffer and the block size.  Nothing ever blocks.
+ * Block headers are checked against the DecodeLimits as they arrive, and buffers only grow as data
+ * actually arrives, so a header can't make the decompressor allocate what it claims.
+ * Not thread-safe.  Use one per stream.
+ * @author Lee Coakley
+ */
+public class Decompressor
+{
+	private static final int stateHeader  = 0;
+	private static final int stateTable   = 1;
+	private static final int stateCodes   = 2;
+	private static final int stateStored  = 3;
+	private static final int stateCollect = 4;
+	private static final int stateDrain   = 5;
+	private static final int stateSkip    = 6;
+
+	private static final int maxTableBytes = 2 + (256 * (8 + 31) + 7) / 8;
+
+	private final TableChain    chain  = new TableChain();
+	private final AnsCoder      ans    = new AnsCoder();
+	private final DigramCoder   digram = new DigramCoder();
+	private final byte[]        header = new byte[ BlockCoder.headerBytes ];
+	private final byte[]        table  = new byte[ maxTableBytes ];
+	private final DecodeLimits  limits;
+
+	private byte[]  input;
+	private int     inputPos;
+	private int     inputEnd;
+	private boolean finishRequested;
+	private long    totalIn;
+	private long    totalOut;
+	private long    declaredIn;   // Sum of block sizes from headers so far
+	private long    declaredOut;
+
+	private int     state;
+	private int     fill;         // Bytes collected into header/table/block
+	private int     codec;
+	private int     flags;
+	private int     decLen;
+	private int     payloadLeft;  // Payload bytes of the current block not yet consumed
+	private int     tableSize;
+
+	// Huffman bit state
+	private long    buf;
+	private int     avail;
+	private int     symbolsLeft;
+	private int     maxCodeLength;
+
+	// Collected tANS and byte-pair blocks
+	private byte[]  block  = new byte[ 0 ];
+	private byte[]  output = new byte[ 0 ];
+	private int     outputPos;
+	private int     outputEnd;
+
+	private boolean madeProgress; // Set by each step that consumed input or changed state
+
+
+
+	public Decompressor() {
+		this( DecodeLimits.unlimited );
+	}
+
+
+
+	public Decompressor( DecodeLimits limits ) {
+		this.limits = limits;
+	}
+
+
+
+	public void setInput( byte[] b, int offs, int len ) {
+		if (finishRequested)
+			throw new IllegalStateException( "Already finished" );
+
+		input    = b;
+		inputPos = offs;
+		inputEnd = offs + len;
+	}
+
+
+
+	public void setInput( byte[] b ) {
+		setInput( b, 0, b.length );
+	}
+
+
+
+	/**
+	 * True when all input has been consumed and all output it produced has been handed out.
+	 */
+	public boolean needsInput() {
+		if (inputPos < inputEnd)
+			return false;
+
+		if (state == stateDrain)
+			return false;
+
+		if (state == stateCodes)
+			return ! canDecodeSymbol();
+
+		return true;
+	}
+
+
+
+	/**
+	 * Signal that no more input is coming.  The stream must end on a block boundary.
+	 */
+	public void finish() {
+		finishRequested = true;
+	}
+
+
+
+	/**
+	 * True once finish() was called and everything has been decoded and handed out.
+	 */
+	public boolean finished() {
+		return finishRequested
+			&& inputPos == inputEnd
+			&& state    == stateHeader
+			&& fill     == 0;
+	}
+
+
+
+	public int decompress( byte[] b ) {
+		return decompress( b, 0, b.length );
+	}
+
+
+
+	/**
+	 * Fill the buffer with decompressed data.
+	 * @return Number of bytes written.  Zero means more input is needed, or the stream is finished.
+	 * @throws HuffFormatException if the data is corrupt, or finish() was called and the stream is cut short.
+	 * @throws HuffLimitException if the stream declares more output than the limits allow.
+	 */
+	public int decompress( byte[] b, int offs, int len ) {
+		int written = 0;
+
+		for (;;) {
+			int before = written;
+
+			switch (state) {
+				case stateHeader:  readHeader();                                            break;
+				case stateTable:   readTable();                                             break;
+				case stateCodes:   written += decodeCodes( b, offs + written, len - written ); break;
+				case stateStored:  written += copyStored ( b, offs + written, len - written ); break;
+				case stateSkip:    skipPayload();                                           break;
+				case stateCollect: collectBlock();                                          break;
+				case stateDrain:   written += drainOutput( b, offs + written, len - written ); break;
+			}
+
+			boolean stalled = (written == before) && ! madeProgress;
+			madeProgress = false;
+
+			if (stalled || written == len)
+				break;
+		}
+
+		boolean midBlock = (state != stateHeader) || (fill > 0);
+
+		if (finishRequested && inputPos == inputEnd && midBlock && written == 0 && len > 0)
+			throw new HuffFormatException( "Truncated stream" );
+
+		totalOut += written;
+		return written;
+	}
+
+
+
+	/**
+	 * Start a new stream.  Any buffered input and output is discarded.
+	 */
+	public void reset() {
+		input           = null;
+		inputPos        = 0;
+		inputEnd        = 0;
+		finishRequested = false;
+		totalIn         = 0;
+		totalOut        = 0;
+		declaredIn      = 0;
+		declaredOut     = 0;
+		state           = stateHeader;
+		fill            = 0;
+		outputPos       = 0;
+		outputEnd       = 0;
+		madeProgress    = false;
+		chain.reset();
+	}
+
+
+
+	public long getBytesRead() {
+		return totalIn;
+	}
+
+
+
+	public long getBytesWritten() {
+		return totalOut;
+	}
+
+
+
+	private void readHeader() {
+		if ( ! collect( header, BlockCoder.headerBytes ))
+			return;
+
+		codec       = header[0] & 0xFF;
+		flags       = header[1] & 0xFF;
+		decLen      = Util.getInt( header, 2 );
+		payloadLeft = Util.getInt( header, 6 );
+		fill        = 0;
+
+		if (decLen < 0 || payloadLeft < 0)
+			throw new HuffFormatException( "Bad block header" );
+
+		if (codec != BlockCoder.codecHuffman && flags != 0)
+			throw new HuffFormatException( "Bad flags for codec " + codec + ": " + flags );
+
+		declaredIn  += BlockCoder.headerBytes + payloadLeft;
+		declaredOut += decLen;
+		limits.check( declaredOut, declaredIn );
+
+		switch (codec) {
+			case BlockCoder.codecStored:
+				if (payloadLeft != decLen)
+					throw new HuffFormatException( "Stored block has " + payloadLeft + " bytes, expected " + decLen );
+
+				state = stateStored;
+				break;
+
+			case BlockCoder.codecHuffman:
+				state = (decLen == 0) ? stateSkip : stateTable;
+				break;
+
+			case BlockCoder.codecAns:
+			case BlockCoder.codecDigram:
+				state = stateCollect;
+				break;
+
+			default:
+				throw new HuffFormatException( "Unknown codec: " + codec );
+		}
+	}
+
+
+
+	private void readTable() {
+		if (flags == TableChain.modeRepeat)
+			tableSize = 0;
+		else {
+			int need = (fill < 2) ? 2 : tableSize;
+
+			if ( ! collectPayload( table, need ))
+				return;
+
+			if (need == 2) {
+				tableSize = TableChain.getTableSize( flags, table, 0 );
+
+				if (tableSize > table.length)
+					throw new HuffFormatException( "Bad table size: " + tableSize );
+
+				if ( ! collectPayload( table, tableSize ))
+					return;
+			}
+		}
+
+		chain.readTable( flags, table, 0, tableSize, decLen );
+		chain.getTable().checkCodeSpace( decLen, payloadLeft );
+
+		fill          = 0;
+		buf           = 0;
+		avail         = 0;
+		symbolsLeft   = decLen;
+		maxCodeLength = chain.getTable().getMaxCodeLength();
+		state         = stateCodes;
+		madeProgress  = true;
+	}
+
+
+
+	/**
+	 * Decode symbols while whole codes are available.  Stops mid-code when the input runs out
+	 * and carries on from the same bit next time.
+	 */
+	private int decodeCodes( byte[] b, int offs, int len ) {
+		HuffWorkspace ws       = chain.getTable();
+		int[]         lookup   = ws.getLookup();
+		int[]         children = ws.getChildren();
+		int           peekBits = ws.getPeekBits();
+		int           written  = 0;
+
+		while (written < len && symbolsLeft > 0) {
+			refillBits();
+
+			if ( ! canDecodeSymbol())
+				break;
+
+			int sym = HuffDecoder.decodeSymbol( lookup, children, peekBits, buf, avail );
+
+			if (sym < 0)
+				throw new HuffFormatException( "Invalid code" );
+
+			b[ offs + written++ ] = (byte) sym;
+			avail -= sym >>> 8;
+			symbolsLeft--;
+		}
+
+		if (symbolsLeft == 0)
+			endCodes();
+
+		return written;
+	}
+
+
+
+	private void refillBits() {
+		while (avail <= 56 && payloadLeft > 0 && inputPos < inputEnd) {
+			buf    = (buf << 8) | (input[inputPos++] & 0xFF);
+			avail += 8;
+			payloadLeft--;
+			totalIn++;
+			madeProgress = true;
+		}
+
+		while (payloadLeft == 0 && avail < maxCodeLength) { // Pad the final code with zeros
+			buf  <<= 8;
+			avail += 8;
+		}
+	}
+
+
+
+	private boolean canDecodeSymbol() {
+		return avail >= maxCodeLength || payloadLeft == 0;
+	}
+
+
+
+	private void endCodes() {
+		state        = stateSkip;
+		madeProgress = true;
+	}
+
+
+
+	private int copyStored( byte[] b, int offs, int len ) {
+		int n = Math.min( len, Math.min(payloadLeft, inputEnd - inputPos) );
+
+		System.arraycopy( input, inputPos, b, offs, n );
+		consume( n );
+		return n;
+	}
+
+
+
+	/**
+	 * Pass over whatever is left of the payload once the block is fully decoded.
+	 */
+	private void skipPayload() {
+		consume( Math.min(payloadLeft, inputEnd - inputPos) );
+	}
+
+
+
+	private void consume( int n ) {
+		inputPos    += n;
+		payloadLeft -= n;
+		totalIn     += n;
+
+		if (n > 0)
+			madeProgress = true;
+
+		if (payloadLeft == 0) {
+			state        = stateHeader;
+			madeProgress = true;
+		}
+	}
+
+
+
+	private void collectBlock() {
+		int size = payloadLeft + fill;
+		int want = (int) Math.min( size, fill + (long) (inputEnd - inputPos) );
+
+		if (block.length < want) // Grow with what has arrived, not what the header claims
+			block = Arrays.copyOf( block, (int) Math.min(size, Math.max(want, block.length * 2L)) );
+
+		if ( ! collectPayload( block, size ))
+			return;
+
+		Codec c = (codec == BlockCoder.codecAns) ? ans : digram;
+
+		if (c.getDecompressedLength( block, 0, size ) != decLen)
+			throw new HuffFormatException( "Block header and payload disagree on length" );
+
+		if (output.length < decLen)
+			output = new byte[ decLen ];
+
+		int written = c.decompress( block, 0, size, output, 0 );
+
+		if (written != decLen)
+			throw new HuffFormatException( "Block decoded to " + written + " bytes, expected " + decLen );
+
+		fill      = 0;
+		outputPos = 0;
+		outputEnd = written;
+		state     = stateDrain;
+	}
+
+
+
+	private int drainOutput( byte[] b, int offs, int len ) {
+		int n = Math.min( len, outputEnd - outputPos );
+		System.arraycopy( output, outputPos, b, offs, n );
+		outputPos += n;
+
+		if (outputPos == outputEnd) {
+			state = stateHeader;
+			madeProgress = true;
+		}
+
+		return n;
+	}
+
+
+
+	/**
+	 * Copy input into dst until it holds need bytes.  Doesn't count against the block payload.
+	 * @return True when complete.
+	 */
+	private boolean collect( byte[] dst, int need ) {
+		int n = Math.min( need - fill, inputEnd - inputPos );
+
+		if (n > 0) {
+			System.arraycopy( input, inputPos, dst, fill, n );
+			inputPos += n;
+			fill     += n;
+			totalIn  += n;
+			madeProgress = true;
+		}
+
+		return fill == need;
+	}
+
+
+
+	/**
+	 * Same as collect(), but the bytes come out of the current block's payload.
+	 */
+	private boolean collectPayload( byte[] dst, int need ) {
+		if (need - fill > payloadLeft)
+			throw new HuffFormatException( "Block payload too short" );
+
+		int before = fill;
+		boolean done = collect( dst, need );
+		payloadLeft -= fill - before;
+		return done;
+	}
+}
+
+
+
@@ -0,0 +1,361 @@
+package huffman;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+
+
+/**
+ * Deduplicating layer over another codec, for data with repeated regions such as backups.
+ *
+ * The input is cut into chunks, each hashed, and a chunk seen before becomes a back-reference to its
+ * first occurrence instead of being coded again.  Runs of new chunks are coded together by the inner
+ * codec.  A match on the hash is confirmed by comparing the bytes, so a collision only costs a missed
+ * reference, never wrong output.  Decoding copies referenced bytes from the output already decoded,
+ * so repeated regions cost neither encoding nor decoding work.
+ *
+ * Chunks are either fixed-size or content-defined.  Content-defined boundaries are placed by a rolling
+ * gear hash over the last 64 bytes, so they move with the data: an insertion early on changes the chunks
+ * around it, but the boundaries after it fall in the same places relative to the content and still match.
+ * Fixed-size chunks are cheaper to find but only match regions at the same alignment.
+ *
+ * Data format:
+ * 		Record, repeated until the end of the data:
+ * 			[uint8]  kind: 0 stored, 1 coded by the inner codec, 2 reference
+ * 			[uint32] decoded length
+ * 			[uint32] payload length, or for a reference, the offset of its source in the decoded output
+ * 			[...]    payload, for stored and coded records
+ *
+ * Multi-byte fields are big-endian.  Stateless: safe to share between threads.
+ * @author Lee Coakley
+ */
+public class DedupCoder implements Codec
+{
+	public static final int defaultChunkSize = 4 * 1024;
+	public static final int minChunkSize     = 64; // Smaller chunks can't pay for a reference
+
+	static final int kindStored    = 0;
+	static final int kindCoded     = 1;
+	static final int kindReference = 2;
+	static final int headerBytes   = 1 + 4 + 4;
+
+	private static final long[] gear = makeGearTable();
+
+	private final Codec   inner;
+	private final int     chunkSize;
+	private final boolean contentDefined;
+
+
+
+	public DedupCoder() {
+		this( new BlockCoder(), defaultChunkSize, true );
+	}
+
+
+
+	/**
+	 * @param inner          Codes the runs of new chunks.
+	 * @param chunkSize      Chunk size, or with content-defined chunks the average, rounded down to a power of two.
+	 *                       Smaller finds more repeats but hashes and references more.
+	 * @param contentDefined Place boundaries by content rather than every chunkSize bytes.
+	 */
+	public DedupCoder( Codec inner, int chunkSize, boolean contentDefined ) {
+		if (chunkSize < minChunkSize * 4)
+			throw new IllegalArgumentException( "Chunk size must be at least " + (minChunkSize * 4) + ": " + chunkSize );
+
+		this.inner          = inner;
+		this.chunkSize      = Integer.highestOneBit( chunkSize );
+		this.contentDefined = contentDefined;
+	}
+
+
+
+	public byte[] compress( byte[] data ) {
+		byte[] out  = new byte[ compressBound(data.length) ];
+		int    size = compress( data, 0, data.length, out, 0 );
+		return Arrays.copyOf( out, size );
+	}
+
+
+
+	public byte[] decompress( byte[] data ) {
+		return decompress( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data.  Every record header and reference is validated before anything is copied.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public byte[] decompress( byte[] data, DecodeLimits limits ) {
+		int size = getDecompressedLength( data, 0, data.length );
+		limits.check( size, data.length );
+
+		byte[] out = new byte[ size ];
+		decompress( data, 0, data.length, out, 0 );
+		return out;
+	}
+
+
+
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		HashMap<Long,Integer> seen    = new HashMap<Long,Integer>(); // Chunk hash -> first occurrence
+		byte[]                scratch = new byte[ inner.compressBound(len) ];
+		int                   end     = offs + len;
+		int                   pos     = dstOffs;
+		int                   literal = offs; // Start of the new chunks not yet written
+		int                   refDst  = -1;   // Pending reference: where it goes, where it's from, how long
+		int                   refSrc  = 0;
+		int                   refLen  = 0;
+
+		for (int c=offs; c<end; ) {
+			int     n    = nextChunkLength( src, c, end );
+			long    hash = hashChunk( src, c, n );
+			Integer prev = seen.get( hash );
+
+			boolean repeat = prev != null
+				&& n >= minChunkSize
+				&& Arrays.equals( src, prev, prev + n, src, c, c + n );
+
+			if (repeat) {
+				if (refDst >= 0 && refDst + refLen == c && refSrc + refLen == prev)
+					refLen += n; // Continues the same run of repeats
+				else {
+					if (refDst >= 0)
+						pos += writeReference( dst, pos, refSrc - offs, refLen );
+
+					pos    += writeLiteral( src, literal, c - literal, dst, pos, scratch );
+					refDst  = c;
+					refSrc  = prev;
+					refLen  = n;
+				}
+
+				literal = c + n;
+			}
+			else {
+				if (refDst >= 0) {
+					pos   += writeReference( dst, pos, refSrc - offs, refLen );
+					refDst = -1;
+				}
+
+				seen.putIfAbsent( hash, c );
+			}
+
+			c += n;
+		}
+
+		if (refDst >= 0)
+			pos += writeReference( dst, pos, refSrc - offs, refLen );
+
+		pos += writeLiteral( src, literal, end - literal, dst, pos, scratch );
+		return pos - dstOffs;
+	}
+
+
+
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		int pos    = offs;
+		int end    = offs + len;
+		int outPos = dstOffs;
+
+		while (pos < end) {
+			checkHeader( src, pos, end );
+
+			int kind   = src[pos] & 0xFF;
+			int decLen = Util.getInt( src, pos + 1 );
+			int field  = Util.getInt( src, pos + 5 );
+			pos += headerBytes;
+
+			if (decLen > dst.length - outPos)
+				throw new IllegalArgumentException( "Destination too small" );
+
+			switch (kind) {
+				case kindStored:
+					if (field != decLen)
+						throw new HuffFormatException( "Stored record has " + field + " bytes, expected " + decLen );
+
+					System.arraycopy( src, pos, dst, outPos, decLen );
+					pos += field;
+					break;
+
+				case kindCoded:
+					if (inner.getDecompressedLength( src, pos, field ) != decLen)
+						throw new HuffFormatException( "Record header and payload disagree on length" );
+
+					inner.decompress( src, pos, field, dst, outPos );
+					pos += field;
+					break;
+
+				case kindReference:
+					if (field < 0 || field > outPos - dstOffs - decLen)
+						throw new HuffFormatException( "Reference to [" + field + "," + ((long) field + decLen) + ") before it was decoded" );
+
+					System.arraycopy( dst, dstOffs + field, dst, outPos, decLen );
+					break;
+			}
+
+			outPos += decLen;
+		}
+
+		return outPos - dstOffs;
+	}
+
+
+
+	/**
+	 * Worst case is no repeats and nothing the inner codec can shrink: one stored record.  A reference
+	 * adds at most two headers but removes at least minChunkSize bytes, which is more, so never makes it worse.
+	 */
+	public int compressBound( int len ) {
+		return (int) Math.min( (long) len + headerBytes, Integer.MAX_VALUE );
+	}
+
+
+
+	public int getDecompressedLength( byte[] src, int offs, int len ) {
+		int  pos = offs;
+		int  end = offs + len;
+		long sum = 0;
+
+		while (pos < end) {
+			checkHeader( src, pos, end );
+			sum += Util.getInt( src, pos + 1 ) & 0xFFFFFFFFL;
+			pos += headerBytes + getPayloadLength( src, pos );
+		}
+
+		if (sum > Integer.MAX_VALUE)
+			throw new HuffFormatException( "Decoded size too large: " + sum );
+
+		return (int) sum;
+	}
+
+
+
+	/**
+	 * Write new data as one record, coded if that's smaller than storing it.
+	 * @return Bytes written.
+	 */
+	private int writeLiteral( byte[] src, int offs, int len, byte[] dst, int dstOffs, byte[] scratch ) {
+		if (len == 0)
+			return 0;
+
+		int encLen = inner.compress( src, offs, len, scratch, 0 );
+
+		if (encLen < len) {
+			writeHeader( dst, dstOffs, kindCoded, len, encLen );
+			System.arraycopy( scratch, 0, dst, dstOffs + headerBytes, encLen );
+			return headerBytes + encLen;
+		}
+
+		writeHeader( dst, dstOffs, kindStored, len, len );
+		System.arraycopy( src, offs, dst, dstOffs + headerBytes, len );
+		return headerBytes + len;
+	}
+
+
+
+	private static int writeReference( byte[] dst, int dstOffs, int source, int len ) {
+		writeHeader( dst, dstOffs, kindReference, len, source );
+		return headerBytes;
+	}
+
+
+
+	private static void writeHeader( byte[] dst, int pos, int kind, int decLen, int field ) {
+		dst[pos] = (byte) kind;
+		Util.putInt( dst, pos + 1, decLen );
+		Util.putInt( dst, pos + 5, field  );
+	}
+
+
+
+	/**
+	 * @throws HuffFormatException if the record header at pos is malformed or its payload runs past end.
+	 */
+	private static void checkHeader( byte[] src, int pos, int end ) {
+		if (end - pos < headerBytes)
+			throw new HuffFormatException( "Truncated record header at " + pos );
+
+		int kind   = src[pos] & 0xFF;
+		int decLen = Util.getInt( src, pos + 1 );
+
+		if (kind > kindReference)
+			throw new HuffFormatException( "Unknown record kind: " + kind );
+
+		if (decLen < 0)
+			throw new HuffFormatException( "Bad length in record at " + pos );
+
+		int payload = getPayloadLength( src, pos );
+
+		if (payload < 0 || payload > end - pos - headerBytes)
+			throw new HuffFormatException( "Truncated record at " + pos + ": payload of " + payload + " bytes" );
+	}
+
+
+
+	private static int getPayloadLength( byte[] src, int pos ) {
+		return ((src[pos] & 0xFF) == kindReference) ? 0 : Util.getInt( src, pos + 5 );
+	}
+
+
+
+	/**
+	 * Length of the chunk starting at pos.  Content-defined chunks are between a quarter and four times
+	 * the chunk size, ending where the gear hash's top bits are all zero.
+	 */
+	private int nextChunkLength( byte[] src, int pos, int end ) {
+		int remaining = end - pos;
+
+		if ( ! contentDefined || remaining <= chunkSize / 4)
+			return Math.min( chunkSize, remaining );
+
+		int  min  = chunkSize / 4;
+		int  max  = Math.min( chunkSize * 4, remaining );
+		long mask = -1L << (64 - Integer.numberOfTrailingZeros(chunkSize)); // Top log2(chunkSize) bits
+		long h    = 0;
+
+		for (int i=min; i<max; i++) {
+			h = (h << 1) + gear[ src[pos + i] & 0xFF ];
+
+			if ((h & mask) == 0)
+				return i + 1;
+		}
+
+		return max;
+	}
+
+
+
+	/**
+	 * 64-bit FNV-1a with the length mixed in.
+	 */
+	private static long hashChunk( byte[] src, int offs, int len ) {
+		long h = 0xCBF29CE484222325L ^ len;
+
+		for (int i=offs; i<offs+len; i++)
+			h = (h ^ (src[i] & 0xFF)) * 0x100000001B3L;
+
+		return h;
+	}
+
+
+
+	/**
+	 * Random values per byte for the gear hash.  The seed is fixed so chunking is the same on every run,
+	 * though decoding doesn't depend on it.
+	 */
+	private static long[] makeGearTable() {
+		Random rand  = new Random( 0x6765617248617368L );
+		long[] table = new long[ 256 ];
+
+		for (int i=0; i<256; i++)
+			table[i] = rand.nextLong();
+
+		return table;
+	}
+}
+
+
+
@@ -0,0 +1,728 @@
+package huffman;
+import java.util.Arrays;
+
+
+
+/**
+ * Huffman coding over an extended alphabet of single bytes plus frequent byte pairs.
+ * Byte-level Huffman can't spend less than one bit on a byte, which wastes most of the output on
+ * low-entropy data like sensor dumps, where one byte is well over half of everything.  Coding a common
+ * pair as one symbol halves that floor for it, captures which bytes tend to follow which, and halves
+ * the decode iterations per output byte.
+ *
+ * Pairs are counted by FrequencyAnalyser and the most common join the alphabet alongside the 256 bytes.
+ * The input is parsed greedily: a pair in the table is coded as one symbol, and anything else as a
+ * single byte, which serves as the escape.  With over a thousand symbols, the tree is built on arrays
+ * with the two-queue method rather than with HuffTree's nodes.
+ *
+ * Data format:
+ * 		Header:
+ * 			[9 bits]  number of byte symbols
+ * 			[11 bits] number of pair symbols
+ * 			[5 bits]  bits per frequency
+ * 			[7 bits]  padding
+ * 		Byte element, in ascending byte order:
+ * 			[8 bits]  byte
+ * 			[freq]    frequency
+ * 		Pair element, in ascending pair order:
+ * 			[16 bits] first byte << 8 | second byte
+ * 			[freq]    frequency
+ * 		Codes, MSB first, starting on the byte after the table.
+ *
+ * The decoded length is the byte frequencies plus twice the pair frequencies, so it isn't stored.
+ * Stateless: safe to share between threads.
+ * @author Lee Coakley
+ */
+public class DigramCoder implements Codec
+{
+	public  static final int defaultMaxPairs = 1024;
+	public  static final int maxPairsLimit   = 2047;
+	private static final int byteCountBits   = 9;
+	private static final int pairCountBits   = 11;
+	private static final int freqBitsBits    = 5;
+	private static final int headerBits      = 32;
+	private static final int byteBits        = 8;
+	private static final int pairBits        = 16;
+	private static final int minPairCount    = 4; // Rarer pairs can't pay for their table entry
+
+	private static final ThreadLocal<int[]> pairCounts = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[ 1 << pairBits ];
+		}
+	};
+
+	private static final ThreadLocal<int[]> pairSymbols = new ThreadLocal<int[]>() { // Pair -> index in the table, or -1
+		protected int[] initialValue() {
+			int[] map = new int[ 1 << pairBits ];
+			Arrays.fill( map, -1 );
+			return map;
+		}
+	};
+
+	private final int maxPairs;
+
+
+
+	public DigramCoder() {
+		this( defaultMaxPairs );
+	}
+
+
+
+	/**
+	 * @param maxPairs Most pairs added to the alphabet, 0 to 2047.  Each costs a table entry.
+	 */
+	public DigramCoder( int maxPairs ) {
+		if (maxPairs < 0 || maxPairs > maxPairsLimit)
+			throw new IllegalArgumentException( "maxPairs must be 0 to " + maxPairsLimit + ": " + maxPairs );
+
+		this.maxPairs = maxPairs;
+	}
+
+
+
+	public byte[] compress( byte[] data ) {
+		byte[] out  = new byte[ compressBound(data.length) ];
+		int    size = compress( data, 0, data.length, out, 0 );
+		return Arrays.copyOf( out, size );
+	}
+
+
+
+	public byte[] decompress( byte[] data ) {
+		return decompress( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data.  The table is validated and checked against the limits before anything is allocated.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public byte[] decompress( byte[] data, DecodeLimits limits ) {
+		int size = getDecompressedLength( data, 0, data.length );
+		limits.check( size, data.length );
+
+		byte[] out = new byte[ size ];
+		decompress( data, 0, data.length, out, 0 );
+		return out;
+	}
+
+
+
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+
+		int[] map   = pairSymbols.get();
+		Table table = new Table();
+
+		try {
+			analyse( table, src, offs, len, map );
+
+			long size = table.size + (table.codeBits + 7) / 8;
+
+			if (size > dst.length - dstOffs)
+				throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
+
+			writeTable( table, dst, dstOffs );
+			return table.size + writeCodes( table.codes, map, src, offs, len, dst, dstOffs + table.size );
+		}
+		finally {
+			for (int p: table.pairs)
+				map[p] = -1;
+		}
+	}
+
+
+
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+
+		Table table = readTable( src, offs, len );
+		int   size  = (int) table.getDecodedLength();
+
+		if (size > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
+
+		table.buildTree();
+
+		int   peekBits = Math.min( HuffDecoder.maxPeekBits, table.maxLength );
+		int[] lookup   = new int[ 1 << peekBits ];
+
+		HuffDecoder.fillLookup( lookup, table.children, peekBits, 0, 0, 0 );
+		decodeCodes( lookup, table.children, peekBits, table.pairs, src, offs + table.size, offs + len, dst, dstOffs, size );
+		return size;
+	}
+
+
+
+	/**
+	 * Worst case is every symbol in the table and every code as long as a fixed-length code for them,
+	 * which Huffman codes never exceed in total.
+	 */
+	public int compressBound( int len ) {
+		if (len == 0)
+			return 0;
+
+		int  symbols   = 256 + maxPairs;
+		int  freqBits  = 32 - Integer.numberOfLeadingZeros( len );
+		int  codeLen   = Math.max( 1, 32 - Integer.numberOfLeadingZeros(symbols - 1) );
+		long tableBits = headerBits + 256L * (byteBits + freqBits) + (long) maxPairs * (pairBits + freqBits);
+		long size      = ((tableBits + 7) / 8) + (((long) len * codeLen + 7) / 8);
+
+		return (int) Math.min( size, Integer.MAX_VALUE );
+	}
+
+
+
+	public int getDecompressedLength( byte[] src, int offs, int len ) {
+		if (len == 0)
+			return 0;
+
+		return (int) readTable( src, offs, len ).getDecodedLength();
+	}
+
+
+
+	/**
+	 * Exact compressed size.  Does nearly all the work of compressing, but writes nothing.
+	 */
+	public int estimateSize( byte[] src, int offs, int len ) {
+		if (len == 0)
+			return 0;
+
+		int[] map   = pairSymbols.get();
+		Table table = new Table();
+
+		try {
+			analyse( table, src, offs, len, map );
+			long size = table.size + (table.codeBits + 7) / 8;
+			return (int) Math.min( size, Integer.MAX_VALUE );
+		}
+		finally {
+			for (int p: table.pairs)
+				map[p] = -1;
+		}
+	}
+
+
+
+	/**
+	 * Choose pairs, parse the input to get symbol frequencies, and build codes.
+	 * Leaves map set for the table's pairs.  The caller must clear them again.
+	 */
+	private void analyse( Table table, byte[] src, int offs, int len, int[] map ) {
+		int[] counts = pairCounts.get();
+		FrequencyAnalyser.countPairs( src, offs, len, counts );
+
+		table.pairs = choosePairs( counts );
+
+		for (int k=0; k<table.pairs.length; k++)
+			map[ table.pairs[k] ] = k;
+
+		int[] pairFreqs = new int[ table.pairs.length ];
+		int   i         = offs;
+		int   end       = offs + len;
+
+		while (i < end - 1) {
+			int k = map[ ((src[i] & 0xFF) << 8) | (src[i+1] & 0xFF) ];
+
+			if (k >= 0) {
+				pairFreqs[k]++;
+				i += 2;
+			}
+			else table.byteFreqs[ src[i++] & 0xFF ]++;
+		}
+
+		if (i < end)
+			table.byteFreqs[ src[i] & 0xFF ]++;
+
+		// Pairs the parse never used, because an overlapping pair always won, are dropped
+		int used = 0;
+
+		for (int k=0; k<table.pairs.length; k++) {
+			int p = table.pairs[k];
+
+			if (pairFreqs[k] == 0) {
+				map[p] = -1;
+				continue;
+			}
+
+			table.pairs[used] = p;
+			pairFreqs  [used] = pairFreqs[k];
+			map[p]            = used++;
+		}
+
+		table.pairs     = Arrays.copyOf( table.pairs, used );
+		table.pairFreqs = Arrays.copyOf( pairFreqs,   used );
+		table.setSize();
+		table.buildTree();
+
+		for (int b=0; b<256; b++)
+			table.codeBits += (long) table.byteFreqs[b] * (table.codes[b] & 0xFF);
+
+		for (int k=0; k<table.pairs.length; k++)
+			table.codeBits += (long) table.pairFreqs[k] * (table.codes[256 + k] & 0xFF);
+	}
+
+
+
+	/**
+	 * The most common pairs that occur at least minPairCount times, in ascending pair order.
+	 */
+	private int[] choosePairs( int[] counts ) {
+		int n = 0;
+
+		for (int p=0; p<counts.length; p++)
+			if (counts[p] >= minPairCount)
+				n++;
+
+		long[] keys = new long[ n ];
+		n = 0;
+
+		for (int p=0; p<counts.length; p++)
+			if (counts[p] >= minPairCount)
+				keys[n++] = ((long) counts[p] << pairBits) | p;
+
+		Arrays.sort( keys );
+
+		int   count = Math.min( n, maxPairs );
+		int[] pairs = new int[ count ];
+
+		for (int i=0; i<count; i++)
+			pairs[i] = (int) (keys[n - 1 - i] & 0xFFFF);
+
+		Arrays.sort( pairs );
+		return pairs;
+	}
+
+
+
+	private static void writeTable( Table table, byte[] dst, int dstOffs ) {
+		BitWriter out = new BitWriter( dst, dstOffs );
+
+		out.put( table.countBytes(),  byteCountBits );
+		out.put( table.pairs.length,  pairCountBits );
+		out.put( table.freqBits,      freqBitsBits  );
+		out.put( 0,                   headerBits - byteCountBits - pairCountBits - freqBitsBits );
+
+		for (int b=0; b<256; b++) {
+			if (table.byteFreqs[b] > 0) {
+				out.put( b,                  byteBits       );
+				out.put( table.byteFreqs[b], table.freqBits );
+			}
+		}
+
+		for (int k=0; k<table.pairs.length; k++) {
+			out.put( table.pairs[k],     pairBits       );
+			out.put( table.pairFreqs[k], table.freqBits );
+		}
+
+		out.finish();
+	}
+
+
+
+	/**
+	 * Parse the input again exactly as analyse() did and write each symbol's code.
+	 * @return Number of bytes written.
+	 */
+	private static int writeCodes( long[] codes, int[] map, byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		BitWriter out = new BitWriter( dst, dstOffs );
+		int       i   = offs;
+		int       end = offs + len;
+
+		while (i < end) {
+			long entry;
+			int  k = (i + 1 < end) ? map[ ((src[i] & 0xFF) << 8) | (src[i+1] & 0xFF) ] : -1;
+
+			if (k >= 0) {
+				entry = codes[ 256 + k ];
+				i    += 2;
+			}
+			else entry = codes[ src[i++] & 0xFF ];
+
+			out.put( entry >>> 8, (int) entry & 0xFF );
+		}
+
+		return out.finish() - dstOffs;
+	}
+
+
+
+	/**
+	 * Read and validate a table, and check the data after it has room for the codes it claims.
+	 * @throws HuffFormatException if it's malformed.
+	 */
+	private static Table readTable( byte[] src, int offs, int len ) {
+		if (len < headerBits / 8)
+			throw new HuffFormatException( "Bad size: " + len );
+
+		Table table     = new Table();
+		int   byteCount = (int) HuffWorkspace.readBits( src, offs, 0,                             byteCountBits );
+		int   pairCount = (int) HuffWorkspace.readBits( src, offs, byteCountBits,                 pairCountBits );
+		int   freqBits  = (int) HuffWorkspace.readBits( src, offs, byteCountBits + pairCountBits, freqBitsBits  );
+
+		if (byteCount > 256 || byteCount + pairCount == 0)
+			throw new HuffFormatException( "Bad table size: " + byteCount + " bytes, " + pairCount + " pairs" );
+
+		if (freqBits <= 0)
+			throw new HuffFormatException( "Bad freq bits: " + freqBits );
+
+		table.freqBits  = freqBits;
+		table.pairs     = new int[ pairCount ];
+		table.pairFreqs = new int[ pairCount ];
+		table.setSize( byteCount );
+
+		if (table.size > len)
+			throw new HuffFormatException( "Truncated table: need " + table.size + " bytes, have " + len );
+
+		long bitPos = headerBits;
+		int  prev   = -1;
+
+		for (int i=0; i<byteCount; i++) {
+			int b    = (int) HuffWorkspace.readBits( src, offs, bitPos,            byteBits );
+			int freq = (int) HuffWorkspace.readBits( src, offs, bitPos + byteBits, freqBits );
+			bitPos  += byteBits + freqBits;
+
+			if (b <= prev || freq == 0)
+				throw new HuffFormatException( "Bad table element for byte " + b );
+
+			table.byteFreqs[b] = freq;
+			prev = b;
+		}
+
+		prev = -1;
+
+		for (int k=0; k<pairCount; k++) {
+			int p    = (int) HuffWorkspace.readBits( src, offs, bitPos,            pairBits );
+			int freq = (int) HuffWorkspace.readBits( src, offs, bitPos + pairBits, freqBits );
+			bitPos  += pairBits + freqBits;
+
+			if (p <= prev || freq == 0)
+				throw new HuffFormatException( "Bad table element for pair " + p );
+
+			table.pairs    [k] = p;
+			table.pairFreqs[k] = freq;
+			prev = p;
+		}
+
+		long symbols = table.getSymbolCount();
+		long bytes   = len - table.size;
+
+		if (table.getDecodedLength() > Integer.MAX_VALUE)
+			throw new HuffFormatException( "Decoded size too large: " + table.getDecodedLength() );
+
+		if (symbols > bytes * 8) // Every code is at least one bit
+			throw new HuffFormatException( "Claims " + symbols + " symbols, but has only " + bytes + " bytes of codes" );
+
+		return table;
+	}
+
+
+
+	/**
+	 * Decode count bytes from src[srcOffs,srcEnd) into dst.  Bits past srcEnd read as zero.
+	 * Same lookup scheme as HuffDecoder, except a symbol may be a pair and write two bytes.
+	 */
+	private static void decodeCodes( int[] lookup, int[] children, int peekBits, int[] pairs, byte[] src, int srcOffs, int srcEnd, byte[] dst, int dstOffs, int count ) {
+		int  pos    = srcOffs;
+		long buf    = 0;
+		int  avail  = 0;
+		int  mask   = (1 << peekBits) - 1;
+		int  i      = dstOffs;
+		int  dstEnd = dstOffs + count;
+
+		while (i < dstEnd) {
+			while (avail <= 56) {
+				int b = (pos < srcEnd) ? (src[pos] & 0xFF) : 0;
+				buf    = (buf << 8) | b;
+				avail += 8;
+				pos++;
+			}
+
+			int entry = lookup[ (int) (buf >>> (avail - peekBits)) & mask ];
+			int sym;
+
+			if (entry > 0) {
+				sym    = entry & 0xFFFF;
+				avail -= entry >>> 16;
+			}
+			else if (entry == 0)
+				throw new HuffFormatException( "Invalid code at byte #" + (i - dstOffs) );
+			else {
+				int node = ~entry;
+				avail   -= peekBits;
+
+				for (;;) {
+					int bit   = (int) (buf >>> --avail) & 1;
+					int child = children[ node*2 + bit ];
+
+					if (child == HuffDecoder.invalid)
+						throw new HuffFormatException( "Invalid code at byte #" + (i - dstOffs) );
+
+					if (child < 0) {
+						sym = ~child;
+						break;
+					}
+
+					node = child;
+				}
+			}
+
+			if (sym < 256) {
+				dst[i++] = (byte) sym;
+				continue;
+			}
+
+			if (dstEnd - i < 2)
+				throw new HuffFormatException( "Codes run past the decoded length" );
+
+			int p = pairs[ sym - 256 ];
+			dst[i++] = (byte) (p >>> 8);
+			dst[i++] = (byte)  p;
+		}
+	}
+
+
+
+	/**
+	 * Symbol frequencies, and for the encoder, their codes.
+	 * Symbols are the bytes 0-255, then pair k as 256 + k.
+	 */
+	private static final class Table
+	{
+		final int[] byteFreqs = new int[ 256 ];
+		int[]       pairs     = new int[ 0 ]; // Ascending
+		int[]       pairFreqs;
+		int         freqBits;
+		int         size;                     // Serialized size in bytes
+		long        codeBits;
+
+		// Built by buildTree()
+		long[]      codes;                    // Packed as HuffEncoder.pack(), by symbol
+		int[]       children;                 // Flattened as in HuffDecoder
+		int         maxLength;
+
+		// Tree under construction.  Leaves are [0,leafCount) in ascending order, then internal nodes.
+		private int[]  leafSymbols;
+		private int[]  lefts;
+		private int[]  rights;
+		private int    leafCount;
+		private int    root;
+
+
+
+		int countBytes() {
+			int count = 0;
+
+			for (int f: byteFreqs)
+				if (f > 0)
+					count++;
+
+			return count;
+		}
+
+
+
+		long getSymbolCount() {
+			long sum = 0;
+
+			for (int f: byteFreqs) sum += f;
+			for (int f: pairFreqs) sum += f;
+
+			return sum;
+		}
+
+
+
+		long getDecodedLength() {
+			long sum = 0;
+
+			for (int f: byteFreqs) sum += f;
+			for (int f: pairFreqs) sum += 2L * f;
+
+			return sum;
+		}
+
+
+
+		/**
+		 * Set the frequency width and size from the frequencies, for the encoder.
+		 */
+		void setSize() {
+			int highest = 0;
+
+			for (int f: byteFreqs) highest = Math.max( highest, f );
+			for (int f: pairFreqs) highest = Math.max( highest, f );
+
+			freqBits = Math.max( 1, 32 - Integer.numberOfLeadingZeros(highest) );
+			setSize( countBytes() );
+		}
+
+
+
+		void setSize( int byteCount ) {
+			long bits = headerBits + (long) byteCount * (byteBits + freqBits) + (long) pairs.length * (pairBits + freqBits);
+			size = (int) ((bits + 7) / 8);
+		}
+
+
+
+		/**
+		 * Build the codes and decode tree.  Encoder and decoder must get the same tree from the same table,
+		 * so leaves are sorted by frequency then symbol, and merged with ties going to leaves.
+		 * @throws HuffFormatException if a code would be too long to code or decode.
+		 */
+		void buildTree() {
+			int    n    = countBytes() + pairs.length;
+			long[] keys = new long[ n ];
+			int    i    = 0;
+
+			for (int b=0; b<256; b++)
+				if (byteFreqs[b] > 0)
+					keys[i++] = ((long) byteFreqs[b] << 12) | b;
+
+			for (int k=0; k<pairs.length; k++)
+				keys[i++] = ((long) pairFreqs[k] << 12) | (256 + k);
+
+			Arrays.sort( keys );
+
+			int    nodes   = Math.max( 2*n - 1, n + 1 );
+			long[] weights = new long[ nodes ];
+			leafSymbols    = new int [ n ];
+			lefts          = new int [ nodes ];
+			rights         = new int [ nodes ];
+			leafCount      = n;
+
+			for (i=0; i<n; i++) {
+				weights    [i] = keys[i] >>> 12;
+				leafSymbols[i] = (int) (keys[i] & 0xFFF);
+			}
+
+			int next = n;
+
+			if (n == 1) {
+				lefts [next] = 0;
+				rights[next] = -1;
+				next++;
+			}
+			else {
+				int   leaf  = 0; // Next unmerged leaf
+				int   inner = n; // Next unmerged internal node.  They're made in ascending weight order.
+				int[] pick  = new int[ 2 ];
+
+				while (next < 2*n - 1) {
+					for (int j=0; j<2; j++)
+						pick[j] = (leaf < n && (inner == next || weights[leaf] <= weights[inner])) ? leaf++ : inner++;
+
+					lefts  [next] = pick[0];
+					rights [next] = pick[1];
+					weights[next] = weights[ pick[0] ] + weights[ pick[1] ];
+					next++;
+				}
+			}
+
+			root      = next - 1;
+			codes     = new long[ 256 + pairs.length ];
+			children  = new int [ (root - n + 1) * 2 ];
+			maxLength = 0;
+			assignCodes( root, 0, 0 );
+		}
+
+
+
+		/**
+		 * Internal node indices count down from the root, which becomes decoder node 0.
+		 */
+		private void assignCodes( int node, long code, int depth ) {
+			if (node < leafCount) {
+				if (depth > HuffEncoder.maxCodeBits)
+					throw new HuffFormatException( "Code too long: " + depth + " bits" );
+
+				codes[ leafSymbols[node] ] = HuffEncoder.pack( code, depth );
+				maxLength = Math.max( maxLength, depth );
+				return;
+			}
+
+			int index = root - node;
+			children[ index*2     ] = toChild( lefts [node] );
+			children[ index*2 + 1 ] = toChild( rights[node] );
+
+			assignCodes( lefts[node], code << 1, depth + 1 );
+
+			if (rights[node] >= 0)
+				assignCodes( rights[node], (code << 1) | 1, depth + 1 );
+		}
+
+
+
+		private int toChild( int node ) {
+			if (node < 0)          return HuffDecoder.invalid;
+			if (node < leafCount)  return ~leafSymbols[ node ];
+			return root - node;
+		}
+	}
+
+
+
+	/**
+	 * Writes bit fields MSB first.  The final byte is padded with zeros.
+	 */
+	private static final class BitWriter
+	{
+		private final byte[] dst;
+		private int          pos;
+		private long         acc;
+		private int          accBits;
+
+
+
+		BitWriter( byte[] dst, int pos ) {
+			this.dst = dst;
+			this.pos = pos;
+		}
+
+
+
+		/**
+		 * Append the low count bits of value, up to 56.
+		 */
+		void put( long value, int count ) {
+			if (accBits + count > 64) {
+				while (accBits >= 8) {
+					accBits -= 8;
+					dst[pos++] = (byte) (acc >>> accBits);
+				}
+			}
+
+			acc      = (acc << count) | (value & ((1L << count) - 1));
+			accBits += count;
+		}
+
+
+
+		/**
+		 * Write out what's left.
+		 * @return Position after the last byte written.
+		 */
+		int finish() {
+			while (accBits >= 8) {
+				accBits -= 8;
+				dst[pos++] = (byte) (acc >>> accBits);
+			}
+
+			if (accBits > 0)
+				dst[pos++] = (byte) (acc << (8 - accBits));
+
+			accBits = 0;
+			return pos;
+		}
+	}
+}
+
+
+
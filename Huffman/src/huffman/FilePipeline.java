@@ -0,0 +1,259 @@
+package huffman;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+
+
+/**
+ * Compresses a file to the BlockCoder format with disk and CPU overlapped.
+ * While block N is being coded, blocks N+1 onwards are being read and blocks before N written.
+ *
+ * Buffers are pooled in a ring of depth slots, each holding one block of input and one of output.
+ * A slot's input is refilled as soon as its block is coded, and its output reused once its write is done,
+ * so at most depth reads and depth writes are ever in flight.  That bounds memory at roughly
+ * 2 * depth * blockSize, no matter how far the disk falls behind.
+ *
+ * Coding runs on the calling thread.  Not thread-safe: use one per file at a time.
+ * @author Lee Coakley
+ */
+public class FilePipeline
+{
+	public static final int defaultDepth = 4;
+
+	private final BlockCoder coder;
+	private final int        depth;
+	private final Slot[]     slots;
+	private final byte[]     scratch;
+	private final TableChain chain = new TableChain();
+
+
+
+	public FilePipeline() {
+		this( new BlockCoder(), defaultDepth );
+	}
+
+
+
+	/**
+	 * @param depth Number of blocks in flight.  2 overlaps reading, coding and writing; more absorbs disk latency spikes.
+	 */
+	public FilePipeline( BlockCoder coder, int depth ) {
+		if (depth < 1)
+			throw new IllegalArgumentException( "Bad depth: " + depth );
+
+		this.coder   = coder;
+		this.depth   = depth;
+		this.slots   = new Slot[ depth ];
+		this.scratch = new byte[ coder.getScratchSize(coder.getBlockSize()) ];
+
+		for (int i=0; i<depth; i++)
+			slots[i] = new Slot( coder.getBlockSize(), coder.compressBound(coder.getBlockSize()) );
+	}
+
+
+
+	public int getDepth() {
+		return depth;
+	}
+
+
+
+	/**
+	 * Compress a file.  The output is created or truncated.
+	 * @return Number of bytes written.
+	 */
+	public long compress( Path in, Path out ) throws IOException {
+		try (AsynchronousFileChannel src = AsynchronousFileChannel.open( in,  StandardOpenOption.READ );
+		     AsynchronousFileChannel dst = AsynchronousFileChannel.open( out, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			return compress( src, dst );
+		}
+	}
+
+
+
+	/**
+	 * Compress the whole of src into dst starting at position zero.
+	 * @return Number of bytes written.
+	 */
+	public long compress( AsynchronousFileChannel src, AsynchronousFileChannel dst ) throws IOException {
+		long size      = src.size();
+		int  blockSize = coder.getBlockSize();
+		long blocks    = (size + blockSize - 1) / blockSize;
+		long outPos    = 0;
+
+		chain.reset();
+
+		try {
+			for (int i=0; i<Math.min(blocks, depth); i++)
+				slots[i].startRead( src, (long) i * blockSize, size );
+
+			for (long b=0; b<blocks; b++) {
+				Slot slot = slots[ (int) (b % depth) ];
+				slot.awaitRead( src );
+				slot.awaitWrite( dst );
+
+				ByteBuffer input = slot.input;
+				int        len   = coder.compressWindow( input.array(), 0, input.position(), slot.output.array(), 0, scratch, chain );
+
+				long next = b + depth;
+				if (next < blocks)
+					slot.startRead( src, next * blockSize, size );
+
+				slot.startWrite( dst, outPos, len );
+				outPos += len;
+			}
+
+			for (Slot slot: slots)
+				slot.awaitWrite( dst );
+		}
+		finally {
+			for (Slot slot: slots)
+				slot.awaitIdle();
+		}
+
+		return outPos;
+	}
+
+
+
+	/**
+	 * One pooled block buffer pair and the I/O currently using it.
+	 */
+	private static final class Slot
+	{
+		final ByteBuffer input;
+		final ByteBuffer output;
+
+		Future<Integer> read;
+		long            readPos;
+		Future<Integer> write;
+		long            writePos;
+
+
+
+		Slot( int blockSize, int outputSize ) {
+			input  = ByteBuffer.allocate( blockSize  );
+			output = ByteBuffer.allocate( outputSize );
+		}
+
+
+
+		void startRead( AsynchronousFileChannel ch, long pos, long size ) {
+			input.clear();
+			input.limit( (int) Math.min(input.capacity(), size - pos) );
+			readPos = pos;
+			read    = ch.read( input, pos );
+		}
+
+
+
+		/**
+		 * Wait for the block to be read in full.  Reads can come back short, so carry on until it is.
+		 */
+		void awaitRead( AsynchronousFileChannel ch ) throws IOException {
+			while (read != null) {
+				int n = await( read );
+
+				if (n < 0)
+					throw new IOException( "File shrank while being read" );
+
+				if (input.hasRemaining())
+					 read = ch.read( input, readPos + input.position() );
+				else read = null;
+			}
+		}
+
+
+
+		void startWrite( AsynchronousFileChannel ch, long pos, int len ) {
+			output.clear();
+			output.limit( len );
+			writePos = pos;
+			write    = ch.write( output, pos );
+		}
+
+
+
+		void awaitWrite( AsynchronousFileChannel ch ) throws IOException {
+			while (write != null) {
+				await( write );
+
+				if (output.hasRemaining())
+					 write = ch.write( output, writePos + output.position() );
+				else write = null;
+			}
+		}
+
+
+
+		/**
+		 * Wait out any I/O still outstanding after a failure, so the buffers are safe to reuse.
+		 * Cancelling an AsynchronousFileChannel future doesn't stop the transfer, and the channels may belong
+		 * to the caller so closing them isn't ours to do; this relies on waiting for each one to finish instead.
+		 * Their results are of no interest by now.  An interrupt doesn't cut the wait short, but is kept.
+		 */
+		void awaitIdle() {
+			boolean interrupted = awaitQuietly( read ) | awaitQuietly( write );
+			read  = null;
+			write = null;
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+
+
+		/**
+		 * @return True if interrupted while waiting.
+		 */
+		private static boolean awaitQuietly( Future<Integer> future ) {
+			boolean interrupted = false;
+
+			while (future != null) {
+				try {
+					future.get();
+					future = null;
+				}
+				catch (InterruptedException ex) {
+					interrupted = true;
+				}
+				catch (ExecutionException ex) {
+					future = null;
+				}
+			}
+
+			return interrupted;
+		}
+
+
+
+		private static int await( Future<Integer> future ) throws IOException {
+			try {
+				return future.get();
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted waiting for I/O" );
+			}
+			catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+
+				throw new IOException( cause );
+			}
+		}
+	}
+}
+
+
+
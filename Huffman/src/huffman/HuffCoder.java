@@ -7,13 +7,14 @@ package huffman;
 
 /**
  * Huffman codec.
+ * The static methods are the codec proper.  Instances adapt them to the Codec interface.
  * @author Lee Coakley
  */
-public class HuffCoder
+public class HuffCoder implements Codec
 {
 	public static void main( String[] args ) throws Exception {
 		byte[] data    = IO.read( "testdata.txt" );
-		byte[] encoded = encode( data    );
+		byte[] encoded = encode( data, true );
 		byte[] decoded = decode( encoded );
 		
 		IO.write( "huff.encoded.txt", encoded, false );
@@ -28,18 +29,62 @@ public class HuffCoder
 	 * Encode uncompressed data using Huffman coding.
 	 */
 	public static byte[] encode( byte[] data ) {
+		return encode( data, false );
+	}
+	
+	
+	
+	private static byte[] encode( byte[] data, boolean printStats ) {
 		if (data.length == 0)
 			return new byte[ 0 ];
 		
-		HuffTable table = FrequencyAnalyser.analyse( data );		
-		HuffTree  tree  = new HuffTree( table );
+		HuffWorkspace ws  = HuffWorkspace.get();
+		byte[]        out = new byte[ ws.analyse(data, 0, data.length) ];
+		ws.encode( data, 0, data.length, out, 0 );
+		
+		if (printStats)
+			printStats( data, out.length );
+		
+		return out;
+	}
+	
+	
+	
+	/**
+	 * Encode src[offs,offs+len) into dst starting at dstOffs.
+	 * Output is the same as encode(byte[]).  Once a thread has warmed up this allocates nothing.
+	 * @return Number of bytes written.
+	 * @throws IllegalArgumentException if dst doesn't have room.  maxCompressedLength() always fits.
+	 */
+	public static int encode( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+		
+		HuffWorkspace ws   = HuffWorkspace.get();
+		int           size = ws.analyse( src, offs, len );
+		
+		if (size > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
 		
-		byte[] huffTable = HuffTable.encode( table );
-		byte[] huffCodes = tree.encode( data );
+		return ws.encode( src, offs, len, dst, dstOffs );
+	}
+	
+	
+	
+	/**
+	 * Upper bound on the encoded size of len bytes.
+	 * A Huffman code is never longer in total than a fixed 8-bit code, so the bound is the input plus the largest table.
+	 */
+	public static int maxCompressedLength( int len ) {
+		if (len == 0)
+			return 0;
 		
-		printStats( table, tree, data, huffTable, huffCodes );
+		int  symbols   = Math.min( 256, len );
+		int  freqBits  = 32 - Integer.numberOfLeadingZeros( len );
+		long tableBits = HuffTable.headerBits + (long) symbols * (HuffTable.elemIndexBits + freqBits);
+		long size      = ((tableBits + 7) / 8) + len;
 		
-		return Util.arrayConcat( huffTable, huffCodes );
+		return (int) Math.min( size, Integer.MAX_VALUE );
 	}
 	
 	
@@ -48,30 +93,121 @@ public class HuffCoder
 	 * Decode huffman compressed data.
 	 */
 	public static byte[] decode( byte[] data ) {
-		if (data.length == 0)
-			return new byte[ 0 ];
+		return decode( data, DecodeLimits.unlimited );
+	}
+	
+	
+	
+	/**
+	 * Decode untrusted data.  The header is validated and checked against the limits before anything is allocated.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public static byte[] decode( byte[] data, DecodeLimits limits ) {
+		int size = getDecodedLength( data, 0, data.length );
+		limits.check( size, data.length );
+		
+		byte[] out = new byte[ size ];
+		decode( data, 0, data.length, out, 0 );
+		return out;
+	}
+	
+	
+	
+	/**
+	 * Decode src[offs,offs+len) into dst starting at dstOffs.
+	 * Once a thread has warmed up this allocates nothing.
+	 * @return Number of bytes written, the same as getDecodedLength().
+	 * @throws IllegalArgumentException if dst doesn't have room.
+	 */
+	public static int decode( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+		
+		HuffWorkspace ws        = HuffWorkspace.get();
+		int           tableSize = ws.readTable( src, offs, len );
+		long          size      = ws.getDecodedLength();
 		
-		HuffTable table      = new HuffTable();
-		int       byteOffset = HuffTable.decode( table, data );
+		ws.checkCodeSpace( size, len - tableSize );
 		
-		HuffTree tree = new HuffTree( table );
-		return tree.decode( data, byteOffset );
+		if (size > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
+		
+		ws.decode( src, offs + tableSize, offs + len, dst, dstOffs, (int) size );
+		return (int) size;
+	}
+	
+	
+	
+	/**
+	 * Get the exact decoded size of compressed data by reading its table.
+	 */
+	public static int getDecodedLength( byte[] src, int offs, int len ) {
+		if (len == 0)
+			return 0;
+		
+		HuffWorkspace ws        = HuffWorkspace.get();
+		int           tableSize = ws.readTable( src, offs, len );
+		long          size      = ws.getDecodedLength();
+		
+		ws.checkCodeSpace( size, len - tableSize );
+		
+		if (size > Integer.MAX_VALUE)
+			throw new HuffFormatException( "Decoded size too large: " + size );
+		
+		return (int) size;
+	}
+	
+	
+	
+	public byte[] compress( byte[] data ) {
+		return encode( data );
+	}
+	
+	
+	
+	public byte[] decompress( byte[] data ) {
+		return decode( data );
+	}
+	
+	
+	
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		return encode( src, offs, len, dst, dstOffs );
+	}
+	
+	
+	
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		return decode( src, offs, len, dst, dstOffs );
 	}
 	
 	
 	
-	private static void printStats( HuffTable table, HuffTree tree, byte[] data, byte[] huffTable, byte[] huffCodes ) {
+	public int compressBound( int len ) {
+		return maxCompressedLength( len );
+	}
+	
+	
+	
+	public int getDecompressedLength( byte[] src, int offs, int len ) {
+		return getDecodedLength( src, offs, len );
+	}
+	
+	
+	
+	private static void printStats( byte[] data, int sizeTotal ) {
+		HuffTable table     = FrequencyAnalyser.analyse( data );
+		int       sizeTable = HuffTable.encode( table ).length;
+		
 		table.printFrequencies();
-		tree .printCodes();
-		printSizeInfo( data, huffTable, huffCodes );
+		new HuffTree( table ).printCodes();
+		printSizeInfo( data.length, sizeTotal - sizeTable, sizeTable );
 	}
 	
 	
 	
-	private static void printSizeInfo( byte[] data, byte[] huffTable, byte[] huffCodes ) {
-		int    sizeRaw         = data.length;
-		int    sizeHuffActual  = huffCodes.length;
-		int    sizeHuffTable   = huffTable.length;
+	private static void printSizeInfo( int sizeRaw, int sizeHuffActual, int sizeHuffTable ) {
 		int    sizeHuffTotal   = sizeHuffActual + sizeHuffTable;
 		double sizeRatio       = sizeHuffTotal / (double) sizeRaw;
 		int    sizePercent     = (int) Math.round( sizeRatio * 100 );
@@ -0,0 +1,282 @@
+package huffman;
+
+
+
+/**
+ * Prebuilt Huffman decoder for a fixed table.
+ * The tree is flattened into arrays at construction and never modified afterwards, so one
+ * instance can be shared freely between threads without locking.  Each call only uses locals.
+ *
+ * Decoding peeks a fixed number of bits and resolves most codes with one table lookup.
+ * Codes longer than the peek width finish with a short walk down the flattened tree.
+ * @author Lee Coakley
+ */
+public final class HuffDecoder
+{
+	static final int maxPeekBits = 11;
+	static final int invalid     = Integer.MIN_VALUE;
+
+	private final int   peekBits;
+	private final int[] lookup;   // Peeked bits -> (length << 16 | byte), or ~node for long codes, or 0 if no code
+	private final int[] children; // Node*2 + bit -> child node, or ~byte for leaves, or invalid
+	private final int   symbolCount;
+
+
+
+	public HuffDecoder( HuffTable table ) {
+		this( new HuffTree(table) );
+	}
+
+
+
+	public HuffDecoder( HuffTree tree ) {
+		HuffNode root = tree.getRoot();
+
+		children    = flattenTree( root );
+		peekBits    = Math.min( maxPeekBits, getDepth(root) );
+		lookup      = new int[ 1 << peekBits ];
+		symbolCount = root.getFreqSum();
+
+		fillLookup( lookup, children, peekBits, 0, 0, 0 );
+	}
+
+
+
+	/**
+	 * Wrap decode tables already built elsewhere.  The arrays are used as-is and must not be modified afterwards.
+	 */
+	HuffDecoder( int peekBits, int[] lookup, int[] children, int symbolCount ) {
+		this.peekBits    = peekBits;
+		this.lookup      = lookup;
+		this.children    = children;
+		this.symbolCount = symbolCount;
+	}
+
+
+
+	/**
+	 * Number of bytes the table was built from.  This is how many a full HuffCoder stream decodes to.
+	 */
+	public int getSymbolCount() {
+		return symbolCount;
+	}
+
+
+
+	/**
+	 * Decode huffman encoded data, giving back its original form.
+	 * Decodes as many bytes as the table was built from.
+	 */
+	public byte[] decode( byte[] data, int byteOffs ) {
+		return decode( data, byteOffs, symbolCount );
+	}
+
+
+
+	/**
+	 * Decode the given number of bytes from huffman encoded data starting at byteOffs.
+	 * @throws HuffFormatException if the data is too short to hold that many codes, or has invalid codes.
+	 */
+	public byte[] decode( byte[] data, int byteOffs, int count ) {
+		checkCount( data, byteOffs, count );
+
+		byte[] out = new byte[ count ];
+		decode( lookup, children, peekBits, data, byteOffs, data.length, out, 0, count );
+		return out;
+	}
+
+
+
+	/**
+	 * Decode count bytes from src[srcOffs,srcEnd) into dst.  Bits past srcEnd read as zero.
+	 */
+	public void decode( byte[] src, int srcOffs, int srcEnd, byte[] dst, int dstOffs, int count ) {
+		decode( lookup, children, peekBits, src, srcOffs, srcEnd, dst, dstOffs, count );
+	}
+
+
+
+	/**
+	 * Every code is at least one bit, so the data bounds the count.  Checked before allocating.
+	 */
+	static void checkCount( byte[] data, int byteOffs, int count ) {
+		long bits = (data.length - (long) byteOffs) * 8;
+
+		if (count < 0 || count > bits)
+			throw new HuffFormatException( "Can't decode " + count + " bytes from " + bits + " bits" );
+	}
+
+
+
+	/**
+	 * Decode count bytes from src[srcOffs,srcEnd) into dst using flattened decode tables.
+	 * Bits past srcEnd read as zero.
+	 */
+	static void decode( int[] lookup, int[] children, int peekBits, byte[] src, int srcOffs, int srcEnd, byte[] dst, int dstOffs, int count ) {
+		int  pos   = srcOffs;
+		long buf   = 0;
+		int  avail = 0;
+		int  mask  = (1 << peekBits) - 1;
+
+		for (int i=dstOffs; i<dstOffs+count; i++) {
+			while (avail <= 56) {
+				int b = (pos < srcEnd) ? (src[pos] & 0xFF) : 0;
+				buf    = (buf << 8) | b;
+				avail += 8;
+				pos++;
+			}
+
+			int entry = lookup[ (int) (buf >>> (avail - peekBits)) & mask ];
+
+			if (entry > 0) {
+				dst[i] = (byte) entry;
+				avail -= entry >>> 16;
+				continue;
+			}
+
+			if (entry == 0)
+				throw new HuffFormatException( "Invalid code at byte #" + (i - dstOffs) );
+
+			int node = ~entry;
+			avail   -= peekBits;
+
+			for (;;) {
+				int bit   = (int) (buf >>> --avail) & 1;
+				int child = children[ node*2 + bit ];
+
+				if (child == invalid)
+					throw new HuffFormatException( "Invalid code at byte #" + (i - dstOffs) );
+
+				if (child < 0) {
+					dst[i] = (byte) ~child;
+					break;
+				}
+
+				node = child;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Decode one symbol from the top of a bit buffer holding avail valid bits.
+	 * For callers that must stop and resume anywhere, so they keep their own buffer.
+	 * The buffer must hold the whole code, or be padded with zeros at the end of the data.
+	 * @return Code length << 8 | byte, or -1 if the bits aren't a valid code.
+	 */
+	static int decodeSymbol( int[] lookup, int[] children, int peekBits, long buf, int avail ) {
+		int entry = lookup[ (int) (buf >>> (avail - peekBits)) & ((1 << peekBits) - 1) ];
+
+		if (entry > 0)
+			return ((entry >>> 16) << 8) | (entry & 0xFF);
+
+		if (entry == 0)
+			return -1;
+
+		int node = ~entry;
+		int used = peekBits;
+
+		for (;;) {
+			int bit   = (int) (buf >>> (avail - ++used)) & 1;
+			int child = children[ node*2 + bit ];
+
+			if (child == invalid)
+				return -1;
+
+			if (child < 0)
+				return (used << 8) | ~child;
+
+			node = child;
+		}
+	}
+
+
+
+	/**
+	 * Fill the peek table from the flattened tree, starting at the given internal node.
+	 * Every entry is written, so the table can be reused without clearing.
+	 */
+	static void fillLookup( int[] lookup, int[] children, int peekBits, int node, int code, int depth ) {
+		if (depth == peekBits) {
+			lookup[ code ] = ~node;
+			return;
+		}
+
+		for (int bit=0; bit<2; bit++) {
+			int child     = children[ node*2 + bit ];
+			int childCode = (code << 1) | bit;
+			int shift     = peekBits - (depth + 1);
+
+			if (child >= 0) {
+				fillLookup( lookup, children, peekBits, child, childCode, depth + 1 );
+				continue;
+			}
+
+			int entry = (child == invalid) ? 0 : ((depth + 1) << 16) | ~child;
+
+			for (int i=childCode<<shift; i<(childCode+1)<<shift; i++)
+				lookup[i] = entry;
+		}
+	}
+
+
+
+	/**
+	 * Flatten the tree into a child array.  The root is node 0.
+	 */
+	static int[] flattenTree( HuffNode root ) {
+		int[] children = new int[ countInternalNodes(root) * 2 ];
+		flattenTree( children, root, 0, 1 );
+		return children;
+	}
+
+
+
+	/**
+	 * Assign node indices in depth-first order and record children.
+	 * @return Next free node index.
+	 */
+	private static int flattenTree( int[] children, HuffNode node, int index, int next ) {
+		HuffNode[] kids = { node.left, node.right };
+
+		for (int bit=0; bit<2; bit++) {
+			HuffNode kid = kids[ bit ];
+
+			if (kid == null)
+				children[ index*2 + bit ] = invalid;
+			else if (kid.hasChar())
+				children[ index*2 + bit ] = ~kid.hc.index;
+			else {
+				children[ index*2 + bit ] = next;
+				next = flattenTree( children, kid, next, next + 1 );
+			}
+		}
+
+		return next;
+	}
+
+
+
+	private static int countInternalNodes( HuffNode node ) {
+		if (node == null || node.hasChar())
+			return 0;
+
+		return 1 + countInternalNodes( node.left ) + countInternalNodes( node.right );
+	}
+
+
+
+	/**
+	 * Length of the longest code in the tree.
+	 */
+	static int getDepth( HuffNode node ) {
+		if (node == null || node.hasChar())
+			return 0;
+
+		return 1 + Math.max( getDepth(node.left), getDepth(node.right) );
+	}
+}
+
+
+
@@ -0,0 +1,242 @@
+package huffman;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+
+
+/**
+ * Prebuilt Huffman encoder for a fixed table.
+ * Codes are flattened into arrays at construction and never modified afterwards, so one
+ * instance can be shared freely between threads without locking.  Each call only uses locals.
+ *
+ * Output is identical to HuffTree.encode() for the same table.
+ * @author Lee Coakley
+ */
+public final class HuffEncoder
+{
+	static final int maxCodeBits = 56; // Must leave room for 7 pending bits in a long
+
+	private static final VarHandle intBE = MethodHandles.byteArrayViewVarHandle( int[].class, ByteOrder.BIG_ENDIAN );
+
+	private final long[] codes; // Code << 8 | length, so one load fetches both
+
+
+
+	public HuffEncoder( HuffTable table ) {
+		this( new HuffTree(table) );
+	}
+
+
+
+	/**
+	 * Wrap codes already built elsewhere.  The array is used as-is and must not be modified afterwards.
+	 */
+	HuffEncoder( long[] codes ) {
+		this.codes = codes;
+	}
+
+
+
+	public HuffEncoder( HuffTree tree ) {
+		codes = new long[ 256 ];
+
+		tree.traverse( new Traverser<HuffNode>() {
+			public void process( HuffNode node ) {
+				if ( ! node.hasChar())
+					return;
+
+				if (node.code.length() > maxCodeBits)
+					throw new RuntimeException( "Code too long: " + node.code.length() + " bits" );
+
+				codes[ node.hc.index ] = pack( Long.parseLong(node.code, 2), node.code.length() );
+			}
+		});
+	}
+
+
+
+	/**
+	 * Check whether the byte has a code in this table.
+	 */
+	public boolean canEncode( byte b ) {
+		return getCodeLength( b ) != 0;
+	}
+
+
+
+	/**
+	 * Get the code length in bits for the byte, or zero if it has no code.
+	 */
+	public int getCodeLength( byte b ) {
+		return (int) codes[ b & 0xFF ] & 0xFF;
+	}
+
+
+
+	/**
+	 * Get the exact number of bits needed to code the given range.
+	 * @throws IllegalArgumentException if a byte in the range has no code in this table.
+	 */
+	public long getBitCount( byte[] data, int offs, int len ) {
+		long bits = 0;
+
+		for (int i=offs; i<offs+len; i++) {
+			int codeLen = (int) codes[ data[i] & 0xFF ] & 0xFF;
+
+			if (codeLen == 0)
+				throw new IllegalArgumentException( "No code for byte " + (data[i] & 0xFF) + " at #" + i );
+
+			bits += codeLen;
+		}
+
+		return bits;
+	}
+
+
+
+	/**
+	 * Huffman code the data.
+	 */
+	public byte[] encode( byte[] data ) {
+		return encode( data, 0, data.length );
+	}
+
+
+
+	/**
+	 * Huffman code a range of the data.
+	 * Trailing bits in the final byte are zero.
+	 * @throws IllegalArgumentException if a byte in the range has no code in this table.
+	 */
+	public byte[] encode( byte[] data, int offs, int len ) {
+		long bits = getBitCount( data, offs, len );
+
+		if (bits > (Integer.MAX_VALUE - 7L))
+			throw new IllegalArgumentException( "Output too large: " + bits + " bits" );
+
+		byte[] out = new byte[ (int) ((bits + 7) / 8) ];
+		encode( codes, data, offs, len, out, 0 );
+		return out;
+	}
+
+
+
+	/**
+	 * Code src[offs,offs+len) into dst without checking.  Every byte in the range must have a code.
+	 * @return Number of bytes written.
+	 */
+	int encode( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		return encode( codes, src, offs, len, dst, dstOffs );
+	}
+
+
+
+	/**
+	 * Code src[offs,offs+len) into dst starting phase bits into dst[dstOffs], for one stream written by several threads.
+	 * When the phase is nonzero the first byte is shared with whatever comes before, so it isn't written.
+	 * Its bits are returned instead, with zeros in the first phase bits, for the caller to OR in.
+	 * The last byte is written with zero padding, so the same works for whatever comes after.
+	 * @return The first byte's bits, or 0 if the phase is zero.
+	 */
+	int encodeShared( byte[] src, int offs, int len, byte[] dst, int dstOffs, int phase ) {
+		if (phase == 0) {
+			encode( codes, src, offs, len, dst, dstOffs, 0, 0 );
+			return 0;
+		}
+
+		int  end     = offs + len;
+		int  i       = offs;
+		long acc     = 0;
+		int  accBits = phase;
+
+		while (accBits < 8 && i < end) {
+			long entry   = codes[ src[i++] & 0xFF ];
+			int  codeLen = (int) entry & 0xFF;
+			acc      = (acc << codeLen) | (entry >>> 8);
+			accBits += codeLen;
+		}
+
+		if (accBits < 8) // Fits in the shared byte entirely
+			return (int) (acc << (8 - accBits)) & 0xFF;
+
+		accBits -= 8;
+		int first  = (int) (acc >>> accBits) & 0xFF;
+		int outPos = dstOffs + 1;
+
+		while (accBits >= 8) {
+			accBits -= 8;
+			dst[outPos++] = (byte) (acc >>> accBits);
+		}
+
+		encode( codes, src, i, end - i, dst, outPos, acc, accBits );
+		return first;
+	}
+
+
+
+	/**
+	 * Pack a code and its length into one table entry.
+	 */
+	static long pack( long code, int length ) {
+		return (code << 8) | length;
+	}
+
+
+
+	/**
+	 * Code src[offs,offs+len) into dst using a packed code table.
+	 * Every byte in the range must have a nonzero code length.
+	 * 
+	 * Codes are packed into a 64-bit accumulator and stored 32 bits at a time.
+	 * Only complete output words are stored, so this never writes past the exact output size.
+	 * @return Number of bytes written.
+	 */
+	static int encode( long[] codes, byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		return encode( codes, src, offs, len, dst, dstOffs, 0, 0 ) - dstOffs;
+	}
+
+
+
+	/**
+	 * Same, continuing after accBits bits already pending in the accumulator.  There must be fewer than 8.
+	 * @return Position after the last byte written.
+	 */
+	private static int encode( long[] codes, byte[] src, int offs, int len, byte[] dst, int dstOffs, long acc, int accBits ) {
+		int outPos = dstOffs;
+
+		for (int i=offs; i<offs+len; i++) {
+			long entry   = codes[ src[i] & 0xFF ];
+			int  codeLen = (int) entry & 0xFF;
+
+			if (codeLen > 32) { // Rare: make room so the accumulator can't overflow
+				while (accBits >= 8) {
+					accBits -= 8;
+					dst[outPos++] = (byte) (acc >>> accBits);
+				}
+			}
+
+			acc      = (acc << codeLen) | (entry >>> 8);
+			accBits += codeLen;
+
+			if (accBits >= 32) {
+				accBits -= 32;
+				intBE.set( dst, outPos, (int) (acc >>> accBits) );
+				outPos  += 4;
+			}
+		}
+
+		while (accBits >= 8) {
+			accBits -= 8;
+			dst[outPos++] = (byte) (acc >>> accBits);
+		}
+
+		if (accBits > 0)
+			dst[outPos++] = (byte) (acc << (8 - accBits));
+
+		return outPos;
+	}
+}
+
+
+
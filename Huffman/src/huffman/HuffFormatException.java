@@ -0,0 +1,22 @@
+package huffman;
+
+
+
+/**
+ * Thrown when compressed data is malformed: truncated, inconsistent or not produced by this library.
+ * Decoders check headers before allocating or decoding, so bad input fails quickly and cheaply.
+ * @author Lee Coakley
+ */
+public class HuffFormatException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+
+
+	public HuffFormatException( String message ) {
+		super( message );
+	}
+}
+
+
+
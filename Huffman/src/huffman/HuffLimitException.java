@@ -0,0 +1,21 @@
+package huffman;
+
+
+
+/**
+ * Thrown when compressed data is well-formed but would decode to more than the DecodeLimits allow.
+ * @author Lee Coakley
+ */
+public class HuffLimitException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+
+
+	public HuffLimitException( String message ) {
+		super( message );
+	}
+}
+
+
+
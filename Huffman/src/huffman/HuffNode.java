@@ -7,6 +7,7 @@ package huffman;
 
 /**
  * A node in the huffman tree.
+ * Mutable, not thread-safe.
  * @author Lee Coakley
  */
 public class HuffNode implements Comparable<HuffNode>
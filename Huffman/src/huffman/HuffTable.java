@@ -12,6 +12,7 @@ import java.util.List;
 /**
  * A collection of Huffman codable characters.
  * Should be kept sorted.  Call sort() after adding chars.
+ * Mutable, not thread-safe.  Codecs built from a table copy what they need.
  * 
  * Data format:
  * 		Header:
@@ -28,11 +29,11 @@ import java.util.List;
  */
 public class HuffTable implements Iterable<HuffChar>
 {
-	private static final int headerCountBits = 9;
-	private static final int headerFreqBits  = 5;
-	private static final int headerPadBits   = 2;
-	private static final int headerBits      = headerCountBits + headerFreqBits + headerPadBits;
-	private static final int elemIndexBits   = 8;
+	static final int headerCountBits = 9;
+	static final int headerFreqBits  = 5;
+	static final int headerPadBits   = 2;
+	static final int headerBits      = headerCountBits + headerFreqBits + headerPadBits;
+	static final int elemIndexBits   = 8;
 	
 	private List<HuffChar> chars;
 	
@@ -120,6 +121,9 @@ public class HuffTable implements Iterable<HuffChar>
 		
 		checkFreqBits( freqBits );
 		
+		if (ceilToBytes( totalBits ) > raw.length)
+			throw new HuffFormatException( "Truncated table: need " + ceilToBytes(totalBits) + " bytes, have " + raw.length );
+		
 		for (int i=0; i<elemCount; i++) {
 			int offsI = headerBits + (elemBits * i);
 			int offsF = offsI + elemIndexBits;
@@ -136,14 +140,14 @@ public class HuffTable implements Iterable<HuffChar>
 	
 	private static void checkSize( byte[] raw ) {
 		if (raw.length < 2)
-			throw new RuntimeException( "Bad size: " + raw.length );
+			throw new HuffFormatException( "Bad size: " + raw.length );
 	}
 	
 	
 	
 	private static void checkFreqBits( int freqBits ) {
 		if (freqBits <= 0 || freqBits >= 32)
-			throw new RuntimeException( "Bad freq bits: " + freqBits );
+			throw new HuffFormatException( "Bad freq bits: " + freqBits );
 	}
 	
 	
@@ -184,8 +188,8 @@ public class HuffTable implements Iterable<HuffChar>
 	
 	private static int getBitsPerFrequency( HuffTable table ) {
 		int highest = table.getHighestFrequency();
-		int log2    = log2i( highest );
-		return Math.max( 1, log2 );
+		int bits    = bitsToStore( highest );
+		return Math.max( 1, bits );
 	}
 	
 	
@@ -197,11 +201,11 @@ public class HuffTable implements Iterable<HuffChar>
 	
 	
 	
-	private static int log2i( int x ) {
-		double logx = Math.log( x );
-		double log2 = Math.log( 2 );
-		double log  = logx / log2;
-		return (int) Math.ceil( log );
+	/**
+	 * Number of bits needed to store x.  Note ceil(log2(x)) is one short for powers of two.
+	 */
+	private static int bitsToStore( int x ) {
+		return 32 - Integer.numberOfLeadingZeros( x );
 	}
 	
 	
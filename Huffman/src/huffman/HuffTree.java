@@ -14,6 +14,9 @@ import java.util.PriorityQueue;
  * A huffman tree.
  * Contains nodes arranged in a binary tree according to the sum of frequencies for each node.
  * Going left is 0, going right is 1.
+ * 
+ * Nodes are mutable and shared with the caller, so trees are not safe to share between threads.
+ * Use HuffEncoder and HuffDecoder for codecs that are built once and reused concurrently.
  */
 public class HuffTree
 {
@@ -36,6 +39,12 @@ public class HuffTree
 	
 	
 	
+	HuffNode getRoot() {
+		return root;
+	}
+	
+	
+	
 	/**
 	 * Get the prefix code for the given byte.
 	 */
@@ -83,37 +92,48 @@ public class HuffTree
 	
 	/**
 	 * Decode huffman encoded data, giving back its original form.
+	 * @throws HuffFormatException if the data is truncated or has invalid codes.
 	 */
 	public byte[] decode( byte[] data, int byteOffs ) {
 		BitStream  bs      = new BitStream( data );
 		ByteVector out     = new ByteVector();
 		int        bitOffs = byteOffs * 8;
 		int        freqs   = root.getFreqSum();
+		int        endBit  = bs.getBitCount();
+		
+		if (freqs < 0 || freqs > endBit - bitOffs) // Every code is at least one bit
+			throw new HuffFormatException( "Table claims " + freqs + " bytes, but there are only " + (endBit - bitOffs) + " bits of codes" );
 		
-		readPrefixes( bs, bitOffs, out, freqs );
+		readPrefixes( bs, bitOffs, endBit, out, freqs );
 		
 		return out.toArray();
 	}
 	
 	
 	
-	private void readPrefixes( BitStream bs, int bitOffs, ByteVector out, int freqs ) {
+	private void readPrefixes( BitStream bs, int bitOffs, int endBit, ByteVector out, int freqs ) {
 		for (int i=0; i<freqs; i++)
-			bitOffs += readPrefixFrom( bs, bitOffs, out );
+			bitOffs += readPrefixFrom( bs, bitOffs, endBit, out );
 	}
 
 
 
-	private int readPrefixFrom( BitStream bs, int bitOffs, ByteVector out ) {
+	private int readPrefixFrom( BitStream bs, int bitOffs, int endBit, ByteVector out ) {
 		HuffNode node = root;
 		
 		for (int i=0; ; i++) {
+			if (bitOffs + i >= endBit)
+				throw new HuffFormatException( "Truncated codes at bit " + (bitOffs + i) );
+			
 			int bit = bs.get( bitOffs + i );
 			
 			if (bit == 1)
 				 node = node.right;
 			else node = node.left;
 			
+			if (node == null)
+				throw new HuffFormatException( "Invalid code at bit " + bitOffs );
+			
 			if (node.hasChar()) {
 				out.add( (byte) node.hc.index );
 				return i + 1;
@@ -0,0 +1,566 @@
+package huffman;
+import java.util.Arrays;
+
+
+
+/**
+ * Reusable working memory for coding in the HuffCoder format without allocating.
+ * Builds the same tree as HuffTree, using arrays in place of nodes and a priority queue.
+ * Not thread-safe: use get() for the calling thread's instance.
+ * @author Lee Coakley
+ */
+final class HuffWorkspace
+{
+	private static final int maxSymbols = 256;
+	private static final int maxNodes   = maxSymbols * 2;
+	
+	private static final ThreadLocal<HuffWorkspace> perThread = new ThreadLocal<HuffWorkspace>() {
+		protected HuffWorkspace initialValue() {
+			return new HuffWorkspace();
+		}
+	};
+
+	private final int[]  histogram = new int [ maxSymbols ];
+	private final int[]  lanes     = new int [ maxSymbols * FrequencyAnalyser.laneCount ];
+	private final long[] sortKeys  = new long[ maxSymbols ];
+
+	// Table, in serialized order
+	private final int[]  symbols = new int[ maxSymbols ];
+	private final int[]  freqs   = new int[ maxSymbols ];
+	private final long[] seen    = new long[ maxSymbols / 64 ]; // Bit per byte, for readTable()
+	private int          symbolCount;
+
+	// Tree.  Nodes [0,symbolCount) are leaves matching the table, the rest are internal.
+	private final int[]  weights = new int[ maxNodes ];
+	private final int[]  lefts   = new int[ maxNodes ];
+	private final int[]  rights  = new int[ maxNodes ];
+	private final int[]  heap    = new int[ maxNodes ];
+	private int          heapSize;
+	private int          root;
+
+	// Codes
+	private final long[] codes    = new long[ maxSymbols ]; // Packed, see HuffEncoder.pack()
+	private final int[]  lengths  = new int [ maxSymbols ];
+	private final int[]  children = new int [ maxSymbols * 2 ];
+	private final int[]  lookup   = new int [ 1 << HuffDecoder.maxPeekBits ];
+	private int          maxLength;
+	private int          minLength;
+	private int          peekBits;
+	private long         codeBits;
+
+
+
+	/**
+	 * Get the calling thread's workspace.
+	 */
+	static HuffWorkspace get() {
+		return perThread.get();
+	}
+
+
+
+	/**
+	 * Count frequencies in the source range and build its codes.
+	 * @return Exact size in bytes of the encoded output.
+	 */
+	int analyse( byte[] src, int offs, int len ) {
+		FrequencyAnalyser.countFrequencies( src, offs, len, histogram, lanes );
+		return analyse( histogram );
+	}
+
+
+
+	/**
+	 * Build codes for a histogram.  Contents of the histogram are not modified.
+	 * @return Exact size in bytes of the output for data with this histogram.
+	 */
+	int analyse( int[] hist ) {
+		setSortedTable( hist );
+		buildCodes();
+
+		codeBits = 0;
+		for (int i=0; i<symbolCount; i++)
+			codeBits += (long) freqs[i] * lengths[ symbols[i] ];
+
+		long size = getTableSize() + ((codeBits + 7) / 8);
+
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException( "Output too large: " + size + " bytes" );
+
+		return (int) size;
+	}
+
+
+
+	/**
+	 * Count frequencies in the source range and set up its table, without building codes.
+	 * For callers that may already have codes for the table.  Follow with buildCodes() if not.
+	 * @return Size of the table in bytes.
+	 */
+	int prepareTable( byte[] src, int offs, int len ) {
+		FrequencyAnalyser.countFrequencies( src, offs, len, histogram, lanes );
+		setSortedTable( histogram );
+		return getTableSize();
+	}
+
+
+
+	/**
+	 * Histogram counted by the last call to analyse(byte[],int,int) or prepareTable().
+	 * Valid until the next call.  Do not modify.
+	 */
+	int[] getHistogram() {
+		return histogram;
+	}
+
+
+
+	/**
+	 * Write the table and codes for the range last passed to analyse().
+	 * @return Number of bytes written.
+	 */
+	int encode( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		int tableSize = writeTable( dst, dstOffs );
+		int codeSize  = HuffEncoder.encode( codes, src, offs, len, dst, dstOffs + tableSize );
+		return tableSize + codeSize;
+	}
+
+
+
+	/**
+	 * Read the table at the start of the source range and build its decode tables.
+	 * The table is fully validated first: elements must be in the order writeTable() puts them,
+	 * by frequency then byte, with no zero frequencies or repeated bytes.
+	 * @return Size of the table in bytes.
+	 * @throws HuffFormatException if the table is malformed.
+	 */
+	int readTable( byte[] src, int offs, int len ) {
+		int headerBytes = HuffTable.headerBits / 8;
+
+		if (len < headerBytes)
+			throw new HuffFormatException( "Bad size: " + len );
+
+		int count    = (int) readBits( src, offs, 0,                         HuffTable.headerCountBits );
+		int freqBits = (int) readBits( src, offs, HuffTable.headerCountBits, HuffTable.headerFreqBits  );
+
+		if (count <= 0 || count > maxSymbols)
+			throw new HuffFormatException( "Bad table size: " + count );
+
+		if (freqBits <= 0 || freqBits >= 32)
+			throw new HuffFormatException( "Bad freq bits: " + freqBits );
+
+		int  elemBits  = HuffTable.elemIndexBits + freqBits;
+		long totalBits = HuffTable.headerBits + (long) count * elemBits;
+		int  tableSize = (int) ((totalBits + 7) / 8);
+
+		if (tableSize > len)
+			throw new HuffFormatException( "Truncated table: need " + tableSize + " bytes, have " + len );
+
+		long prevKey = 0;
+		Arrays.fill( seen, 0 );
+
+		for (int i=0; i<count; i++) {
+			long offsI = HuffTable.headerBits + (long) elemBits * i;
+			symbols[i] = (int) readBits( src, offs, offsI,                           HuffTable.elemIndexBits );
+			freqs  [i] = (int) readBits( src, offs, offsI + HuffTable.elemIndexBits, freqBits                );
+
+			long key = ((long) freqs[i] << 8) | symbols[i];
+
+			if (freqs[i] == 0)
+				throw new HuffFormatException( "Zero frequency for byte " + symbols[i] );
+
+			if (key <= prevKey)
+				throw new HuffFormatException( "Table out of order at element " + i );
+
+			long bit = 1L << (symbols[i] & 63);
+
+			if ((seen[ symbols[i] >>> 6 ] & bit) != 0)
+				throw new HuffFormatException( "Repeated byte " + symbols[i] + " at element " + i );
+
+			seen[ symbols[i] >>> 6 ] |= bit;
+			prevKey = key;
+		}
+
+		symbolCount = count;
+		buildCodes();
+		return tableSize;
+	}
+
+
+
+	/**
+	 * Total number of bytes the last read table decodes to.
+	 */
+	long getDecodedLength() {
+		long sum = 0;
+
+		for (int i=0; i<symbolCount; i++)
+			sum += freqs[i];
+
+		return sum;
+	}
+
+
+
+	/**
+	 * Size in bits of coding data with this histogram using the current codes.
+	 * @return -1 if the data has bytes the current table has no code for.
+	 */
+	long getCodeBits( int[] hist, int total ) {
+		long bits    = 0;
+		long covered = 0;
+
+		for (int i=0; i<symbolCount; i++) {
+			int sym  = symbols[i];
+			bits    += (long) hist[sym] * lengths[sym];
+			covered += hist[sym];
+		}
+
+		return (covered == total) ? bits : -1;
+	}
+
+
+
+	/**
+	 * Write only the codes for a range, using the current table.  Every byte in it must have a code.
+	 * @return Number of bytes written.
+	 */
+	int encodeCodes( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		return HuffEncoder.encode( codes, src, offs, len, dst, dstOffs );
+	}
+
+
+
+	/**
+	 * Copy the current table's frequencies into a 256-entry array, indexed by byte.
+	 */
+	void getFrequencies( int[] out ) {
+		Arrays.fill( out, 0 );
+
+		for (int i=0; i<symbolCount; i++)
+			out[ symbols[i] ] = freqs[i];
+	}
+
+
+
+	/**
+	 * Table size in bytes given the first two bytes of a serialized table.
+	 */
+	static int getTableSize( byte[] src, int offs ) {
+		int count    = (int) readBits( src, offs, 0,                         HuffTable.headerCountBits );
+		int freqBits = (int) readBits( src, offs, HuffTable.headerCountBits, HuffTable.headerFreqBits  );
+		long bits    = HuffTable.headerBits + (long) count * (HuffTable.elemIndexBits + freqBits);
+		return (int) ((bits + 7) / 8);
+	}
+
+
+
+	/**
+	 * Decode tables for the last read table, for decoders that keep their own bit state.
+	 * See HuffDecoder.decodeSymbol().
+	 */
+	int[] getLookup() {
+		return lookup;
+	}
+
+
+
+	int[] getChildren() {
+		return children;
+	}
+
+
+
+	int getPeekBits() {
+		return peekBits;
+	}
+
+
+
+	int getMaxCodeLength() {
+		return maxLength;
+	}
+
+
+
+	int getMinCodeLength() {
+		return minLength;
+	}
+
+
+
+	/**
+	 * Check that a payload of the given size can hold count codes from the current table.
+	 * Every code is at least one bit, so this bounds the output of a header before anything is allocated.
+	 * @throws HuffFormatException if it can't.
+	 */
+	void checkCodeSpace( long count, long bytes ) {
+		long minBits = count * minLength;
+
+		if (minBits > bytes * 8)
+			throw new HuffFormatException( "Claims " + count + " bytes, but has only " + bytes + " bytes of codes" );
+	}
+
+
+
+	/**
+	 * Decode count bytes of codes from src[offs,end) into dst using the last read table.
+	 */
+	void decode( byte[] src, int offs, int end, byte[] dst, int dstOffs, int count ) {
+		HuffDecoder.decode( lookup, children, peekBits, src, offs, end, dst, dstOffs, count );
+	}
+
+
+
+	/**
+	 * Copy the current codes into a standalone encoder, which outlives the workspace.
+	 */
+	HuffEncoder toEncoder() {
+		long[] copy = new long[ maxSymbols ];
+
+		for (int i=0; i<symbolCount; i++)
+			copy[ symbols[i] ] = codes[ symbols[i] ];
+
+		return new HuffEncoder( copy );
+	}
+
+
+
+	/**
+	 * Copy the current decode tables into a standalone decoder, which outlives the workspace.
+	 * The table must decode to no more than Integer.MAX_VALUE bytes.
+	 */
+	HuffDecoder toDecoder() {
+		int internal = Math.max( 1, symbolCount - 1 );
+
+		return new HuffDecoder(
+			peekBits,
+			Arrays.copyOf( lookup,   1 << peekBits ),
+			Arrays.copyOf( children, internal * 2  ),
+			(int) getDecodedLength()
+		);
+	}
+
+
+
+	private void setSortedTable( int[] hist ) {
+		int n = 0;
+
+		for (int i=0; i<maxSymbols; i++)
+			if (hist[i] > 0)
+				sortKeys[n++] = ((long) hist[i] << 8) | i;
+
+		Arrays.sort( sortKeys, 0, n ); // Same order as HuffTable.sort(): by frequency, then index
+
+		for (int i=0; i<n; i++) {
+			symbols[i] = (int) (sortKeys[i] & 0xFF);
+			freqs  [i] = (int) (sortKeys[i] >>> 8);
+		}
+
+		symbolCount = n;
+	}
+
+
+
+	/**
+	 * Same merge order as HuffTree.genTree(), including how ties break.
+	 * That depends on java.util.PriorityQueue's heap operations, which are replicated here.
+	 */
+	void buildCodes() {
+		int n    = symbolCount;
+		int next = n;
+		heapSize = 0;
+
+		for (int i=0; i<n; i++) {
+			weights[i] = freqs[i];
+			offer( i );
+		}
+
+		if (n == 1) {
+			lefts  [next] = 0;
+			rights [next] = -1;
+			weights[next] = freqs[0];
+			next++;
+		}
+		else while (heapSize >= 2) {
+			int left  = poll();
+			int right = poll();
+
+			lefts  [next] = left;
+			rights [next] = right;
+			weights[next] = weights[left] + weights[right];
+			offer( next++ );
+		}
+
+		root      = next - 1;
+		maxLength = 0;
+		minLength = Integer.MAX_VALUE;
+		assignCodes( root, 0, 0 );
+
+		if (maxLength > HuffEncoder.maxCodeBits)
+			throw new HuffFormatException( "Code too long: " + maxLength + " bits" );
+
+		peekBits = Math.min( HuffDecoder.maxPeekBits, maxLength );
+		HuffDecoder.fillLookup( lookup, children, peekBits, 0, 0, 0 );
+	}
+
+
+
+	/**
+	 * Assign codes and flatten the tree for decoding.  Internal node indices count down from the root,
+	 * which becomes decoder node 0.
+	 */
+	private void assignCodes( int node, long code, int depth ) {
+		if (node < symbolCount) {
+			codes  [ symbols[node] ] = HuffEncoder.pack( code, depth );
+			lengths[ symbols[node] ] = depth;
+			maxLength = Math.max( maxLength, depth );
+			minLength = Math.min( minLength, depth );
+			return;
+		}
+
+		int index = root - node;
+		children[ index*2     ] = toChild( lefts [node] );
+		children[ index*2 + 1 ] = toChild( rights[node] );
+
+		assignCodes( lefts[node], code << 1, depth + 1 );
+
+		if (rights[node] >= 0)
+			assignCodes( rights[node], (code << 1) | 1, depth + 1 );
+	}
+
+
+
+	private int toChild( int node ) {
+		if (node < 0)            return HuffDecoder.invalid;
+		if (node < symbolCount)  return ~symbols[ node ];
+		return root - node;
+	}
+
+
+
+	private void offer( int node ) {
+		int k = heapSize++;
+
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			int e      = heap[ parent ];
+
+			if (weights[node] >= weights[e])
+				break;
+
+			heap[k] = e;
+			k = parent;
+		}
+
+		heap[k] = node;
+	}
+
+
+
+	private int poll() {
+		int result = heap[ 0 ];
+		int last   = heap[ --heapSize ];
+
+		if (heapSize > 0)
+			siftDown( last );
+
+		return result;
+	}
+
+
+
+	private void siftDown( int node ) {
+		int k    = 0;
+		int half = heapSize >>> 1;
+
+		while (k < half) {
+			int child = (2 * k) + 1;
+			int c     = heap[ child ];
+			int right = child + 1;
+
+			if (right < heapSize && weights[c] > weights[ heap[right] ])
+				c = heap[ child = right ];
+
+			if (weights[node] <= weights[c])
+				break;
+
+			heap[k] = c;
+			k = child;
+		}
+
+		heap[k] = node;
+	}
+
+
+
+	/**
+	 * Size in bytes of the current table when serialized.
+	 */
+	int getTableSize() {
+		long bits = HuffTable.headerBits + (long) symbolCount * (HuffTable.elemIndexBits + getFreqBits());
+		return (int) ((bits + 7) / 8);
+	}
+
+
+
+	private int getFreqBits() {
+		int highest = freqs[ symbolCount - 1 ];
+		return Math.max( 1, 32 - Integer.numberOfLeadingZeros(highest) );
+	}
+
+
+
+	/**
+	 * Same layout as HuffTable.encode().
+	 */
+	int writeTable( byte[] dst, int dstOffs ) {
+		int  freqBits = getFreqBits();
+		int  pos      = dstOffs;
+		long acc      = 0;
+		int  accBits  = 0;
+
+		acc      = ((long) symbolCount << HuffTable.headerFreqBits) | freqBits;
+		acc    <<= HuffTable.headerPadBits;
+		accBits  = HuffTable.headerBits;
+
+		for (int i=0; i<=symbolCount; i++) {
+			while (accBits >= 8) {
+				accBits -= 8;
+				dst[pos++] = (byte) (acc >>> accBits);
+			}
+
+			if (i == symbolCount)
+				break;
+
+			acc      = (acc << HuffTable.elemIndexBits) | symbols[i];
+			acc      = (acc << freqBits)                | freqs[i];
+			accBits += HuffTable.elemIndexBits + freqBits;
+		}
+
+		if (accBits > 0)
+			dst[pos++] = (byte) (acc << (8 - accBits));
+
+		return pos - dstOffs;
+	}
+
+
+
+	/**
+	 * Read up to 32 bits, MSB first, starting bitOffs bits into src[offs].
+	 */
+	static long readBits( byte[] src, int offs, long bitOffs, int count ) {
+		int  first = offs + (int) (bitOffs >>> 3);
+		int  skip  = (int) (bitOffs & 7);
+		int  bytes = (skip + count + 7) >>> 3;
+		long acc   = 0;
+
+		for (int i=0; i<bytes; i++)
+			acc = (acc << 8) | (src[first + i] & 0xFF);
+
+		return (acc >>> (bytes*8 - skip - count)) & ((1L << count) - 1);
+	}
+}
+
+
+
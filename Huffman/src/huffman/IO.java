@@ -27,6 +27,9 @@ public final class IO
 	
 	
 	
+	/**
+	 * Appending HuffCoder output to a file this way doesn't make it decodable as a whole.  See AppendableFile.
+	 */
 	public static void write( String file, byte[] bytes, boolean append ) throws IOException {		
 		Path path = Paths.get( file );
 		
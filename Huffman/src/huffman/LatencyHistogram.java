@@ -0,0 +1,113 @@
+package huffman;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * Histogram of latencies in power-of-two buckets of microseconds, for cheap percentiles under concurrency.
+ * Bucket i counts latencies in [2^(i-1), 2^i) microseconds, and bucket 0 those under one.
+ * Percentiles are reported as the upper edge of their bucket, so they're within a factor of two.
+ * Thread-safe and lock-free.
+ * @author Lee Coakley
+ */
+public class LatencyHistogram
+{
+	public static final int bucketCount = 40; // Up to about 6 days
+
+	private final AtomicLongArray buckets = new AtomicLongArray( bucketCount );
+	private final AtomicLong      count   = new AtomicLong();
+	private final AtomicLong      total   = new AtomicLong(); // Microseconds
+	private final AtomicLong      max     = new AtomicLong();
+
+
+
+	public void record( long nanos ) {
+		long micros = Math.max( 0, nanos / 1000 );
+		int  bucket = Math.min( bucketCount - 1, 64 - Long.numberOfLeadingZeros(micros) );
+
+		buckets.incrementAndGet( bucket );
+		count  .incrementAndGet();
+		total  .addAndGet( micros );
+
+		long prev;
+		while ((prev = max.get()) < micros && ! max.compareAndSet( prev, micros ));
+	}
+
+
+
+	public long getCount() {
+		return count.get();
+	}
+
+
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+
+
+	public double getMeanMicros() {
+		long n = count.get();
+		return (n == 0) ? 0 : total.get() / (double) n;
+	}
+
+
+
+	/**
+	 * @param p Fraction of samples, in [0,1].
+	 * @return Upper bound in microseconds on the latency of that fraction of samples, or 0 if there are none.
+	 */
+	public long getPercentileMicros( double p ) {
+		if (p < 0 || p > 1)
+			throw new IllegalArgumentException( "Bad percentile: " + p );
+
+		long[] snapshot = getBuckets();
+		long   n        = 0;
+
+		for (long c: snapshot)
+			n += c;
+
+		long rank = (long) Math.ceil( p * n );
+		long seen = 0;
+
+		for (int i=0; i<bucketCount; i++) {
+			seen += snapshot[i];
+
+			if (seen >= rank && seen > 0)
+				return 1L << i;
+		}
+
+		return 0;
+	}
+
+
+
+	/**
+	 * Copy of the bucket counts.  Taken without a lock, so concurrent records may be partly included.
+	 */
+	public long[] getBuckets() {
+		long[] out = new long[ bucketCount ];
+
+		for (int i=0; i<bucketCount; i++)
+			out[i] = buckets.get( i );
+
+		return out;
+	}
+
+
+
+	public String toString() {
+		return "count=" + getCount()
+			+ " mean=" + Math.round( getMeanMicros() ) + "us"
+			+ " p50<="  + getPercentileMicros( 0.50 ) + "us"
+			+ " p90<="  + getPercentileMicros( 0.90 ) + "us"
+			+ " p99<="  + getPercentileMicros( 0.99 ) + "us"
+			+ " max="   + getMaxMicros() + "us";
+	}
+}
+
+
+
@@ -0,0 +1,99 @@
+package huffman;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+
+
+/**
+ * Measures every BlockCoder level on the given files and prints a table of ratio and throughput,
+ * in the Markdown used by the README.
+ *
+ * Usage:
+ * 		LevelBenchmark [-reps n] file...
+ *
+ * Each level codes each file once to warm up, then n more times, and the fastest run counts.
+ * Throughput is single-threaded, in megabytes of uncompressed data per second.
+ * @author Lee Coakley
+ */
+public class LevelBenchmark
+{
+	public static void main( String[] args ) throws IOException {
+		int reps  = 5;
+		int first = 0;
+
+		if (args.length >= 2 && args[0].equals( "-reps" )) {
+			reps  = Integer.parseInt( args[1] );
+			first = 2;
+		}
+
+		if (first >= args.length || reps < 1) {
+			System.err.println( "Usage: LevelBenchmark [-reps n] file..." );
+			System.exit( 2 );
+		}
+
+		byte[][] files = new byte[ args.length - first ][];
+		long     total = 0;
+
+		for (int i=first; i<args.length; i++) {
+			files[i - first] = Files.readAllBytes( Paths.get(args[i]) );
+			total += files[i - first].length;
+		}
+
+		System.out.println( "| Level | Ratio  | Compress   | Decompress |" );
+		System.out.println( "|-------|--------|------------|------------|" );
+
+		for (int level=BlockCoder.minLevel; level<=BlockCoder.maxLevel; level++) {
+			BlockCoder coder   = BlockCoder.forLevel( level );
+			long       encSize = 0;
+			long       encTime = 0;
+			long       decTime = 0;
+
+			for (byte[] data: files) {
+				byte[] enc = coder.compress( data );
+
+				if ( ! Arrays.equals( coder.decompress(enc), data ))
+					throw new IllegalStateException( "Level " + level + " failed to round-trip" );
+
+				encSize += enc.length;
+				encTime += fastest( coder, data, enc, reps, true  );
+				decTime += fastest( coder, data, enc, reps, false );
+			}
+
+			System.out.printf( "| %-5d | %5.1f%% | %5.1f MB/s | %5.1f MB/s |%n",
+				level, 100.0 * encSize / total, toMBps(total, encTime), toMBps(total, decTime) );
+		}
+	}
+
+
+
+	/**
+	 * @return Nanoseconds taken by the fastest of reps runs.
+	 */
+	private static long fastest( BlockCoder coder, byte[] data, byte[] enc, int reps, boolean compress ) {
+		long best = Long.MAX_VALUE;
+
+		for (int i=0; i<reps; i++) {
+			long start = System.nanoTime();
+
+			if (compress)
+				 coder.compress  ( data );
+			else coder.decompress( enc  );
+
+			best = Math.min( best, System.nanoTime() - start );
+		}
+
+		return best;
+	}
+
+
+
+	private static double toMBps( long bytes, long nanos ) {
+		return (bytes / 1e6) / (nanos / 1e9);
+	}
+}
+
+
+
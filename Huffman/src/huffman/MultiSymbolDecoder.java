@@ -0,0 +1,213 @@
+package huffman;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+
+
+/**
+ * Huffman decoder whose table entries hold several whole symbols.
+ * Short codes dominate typical data, so one peek of tableBits bits usually covers two or more
+ * complete codes.  Each entry stores up to maxSymbols decoded bytes plus the bits they use,
+ * and the decoder stores all of them at once.
+ *
+ * tableBits sets the trade-off.  12 bits is 32KB of table and fits in L1 on most machines;
+ * 14-16 bits fits in L2 and catches more symbols per lookup.
+ *
+ * Immutable and safe to share between threads, like HuffDecoder.  Output is identical to HuffDecoder's.
+ * @author Lee Coakley
+ */
+public final class MultiSymbolDecoder
+{
+	public  static final int defaultTableBits  = 12;
+	public  static final int defaultMaxSymbols = 4;
+	private static final int minTableBits      = 8;
+	private static final int maxTableBits      = 20;
+
+	private static final VarHandle intLE  = MethodHandles.byteArrayViewVarHandle( int [].class, ByteOrder.LITTLE_ENDIAN );
+	private static final VarHandle longBE = MethodHandles.byteArrayViewVarHandle( long[].class, ByteOrder.BIG_ENDIAN    );
+
+	private final int    tableBits;
+	private final int    maxSymbols;
+	private final long[] table;    // Bytes (LE) | count << 32 | bits << 40, or 0 to fall back on the single table
+	private final int[]  single;   // One symbol per entry, same layout as HuffDecoder's lookup
+	private final int[]  children; // Flattened tree, same layout as HuffDecoder's
+	private final int    symbolCount;
+
+
+
+	public MultiSymbolDecoder( HuffTable table ) {
+		this( new HuffTree(table), defaultTableBits, defaultMaxSymbols );
+	}
+
+
+
+	/**
+	 * @param tableBits  Bits peeked per lookup, 8 to 20.  The table has 2^tableBits entries of 8 bytes.
+	 * @param maxSymbols Most bytes a single entry can produce, 1 to 4.
+	 */
+	public MultiSymbolDecoder( HuffTree tree, int tableBits, int maxSymbols ) {
+		if (tableBits < minTableBits || tableBits > maxTableBits)
+			throw new IllegalArgumentException( "tableBits must be " + minTableBits + " to " + maxTableBits + ": " + tableBits );
+
+		if (maxSymbols < 1 || maxSymbols > 4)
+			throw new IllegalArgumentException( "maxSymbols must be 1 to 4: " + maxSymbols );
+
+		HuffNode root = tree.getRoot();
+
+		this.tableBits   = tableBits;
+		this.maxSymbols  = maxSymbols;
+		this.children    = HuffDecoder.flattenTree( root );
+		this.single      = new int [ 1 << tableBits ];
+		this.table       = new long[ 1 << tableBits ];
+		this.symbolCount = root.getFreqSum();
+
+		HuffDecoder.fillLookup( single, children, tableBits, 0, 0, 0 );
+		fillTable();
+	}
+
+
+
+	public int getTableBits() {
+		return tableBits;
+	}
+
+
+
+	/**
+	 * Number of bytes the table was built from.  This is how many a full HuffCoder stream decodes to.
+	 */
+	public int getSymbolCount() {
+		return symbolCount;
+	}
+
+
+
+	/**
+	 * Decode huffman encoded data, giving back its original form.
+	 * Decodes as many bytes as the table was built from.
+	 */
+	public byte[] decode( byte[] data, int byteOffs ) {
+		return decode( data, byteOffs, symbolCount );
+	}
+
+
+
+	/**
+	 * Decode the given number of bytes from huffman encoded data starting at byteOffs.
+	 * @throws HuffFormatException if the data is too short to hold that many codes, or has invalid codes.
+	 */
+	public byte[] decode( byte[] data, int byteOffs, int count ) {
+		HuffDecoder.checkCount( data, byteOffs, count );
+
+		byte[] out = new byte[ count ];
+		decode( data, byteOffs, data.length, out, 0, count );
+		return out;
+	}
+
+
+
+	/**
+	 * Decode count bytes from src[srcOffs,srcEnd) into dst.  Bits past srcEnd read as zero.
+	 */
+	public void decode( byte[] src, int srcOffs, int srcEnd, byte[] dst, int dstOffs, int count ) {
+		int  pos    = srcOffs;
+		long buf    = 0;
+		int  avail  = 0;
+		int  mask   = (1 << tableBits) - 1;
+		int  i      = dstOffs;
+		int  dstEnd = dstOffs + count;
+
+		while (i < dstEnd) {
+			if (avail <= 56) {
+				if (pos + 8 <= srcEnd) {
+					int  bytes = (64 - avail) >>> 3;
+					long word  = (long) longBE.get( src, pos );
+					buf    = (bytes == 8) ? word : (buf << (bytes * 8)) | (word >>> (64 - bytes*8));
+					avail += bytes * 8;
+					pos   += bytes;
+				}
+				else while (avail <= 56) {
+					int b = (pos < srcEnd) ? (src[pos] & 0xFF) : 0;
+					buf    = (buf << 8) | b;
+					avail += 8;
+					pos++;
+				}
+			}
+
+			int  peek  = (int) (buf >>> (avail - tableBits)) & mask;
+			long entry = table[ peek ];
+			int  n     = (int) (entry >>> 32) & 0xFF;
+
+			if (n != 0 && dstEnd - i >= 4) {
+				intLE.set( dst, i, (int) entry );
+				i     += n;
+				avail -= (int) (entry >>> 40);
+				continue;
+			}
+
+			// One symbol at a time: near the end, or for codes longer than tableBits
+			int e = single[ peek ];
+
+			if (e > 0) {
+				dst[i++] = (byte) e;
+				avail   -= e >>> 16;
+				continue;
+			}
+
+			if (e == 0)
+				throw new HuffFormatException( "Invalid code at byte #" + (i - dstOffs) );
+
+			int node = ~e;
+			avail   -= tableBits;
+
+			for (;;) {
+				int bit   = (int) (buf >>> --avail) & 1;
+				int child = children[ node*2 + bit ];
+
+				if (child == HuffDecoder.invalid)
+					throw new HuffFormatException( "Invalid code at byte #" + (i - dstOffs) );
+
+				if (child < 0) {
+					dst[i++] = (byte) ~child;
+					break;
+				}
+
+				node = child;
+			}
+		}
+	}
+
+
+
+	/**
+	 * For every possible peek, decode greedily with the single-symbol table while codes fit entirely
+	 * inside the peeked bits.
+	 */
+	private void fillTable() {
+		int mask = (1 << tableBits) - 1;
+
+		for (int v=0; v<table.length; v++) {
+			long bytes = 0;
+			int  count = 0;
+			int  used  = 0;
+
+			while (count < maxSymbols) {
+				int e = single[ (v << used) & mask ];
+
+				if (e <= 0 || (e >>> 16) > tableBits - used)
+					break;
+
+				bytes |= (long) (e & 0xFF) << (count * 8);
+				used  += e >>> 16;
+				count++;
+			}
+
+			if (count > 0)
+				table[v] = bytes | ((long) count << 32) | ((long) used << 40);
+		}
+	}
+}
+
+
+
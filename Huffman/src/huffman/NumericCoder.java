@@ -0,0 +1,580 @@
+package huffman;
+
+import java.util.Arrays;
+
+
+
+/**
+ * Coder for arrays of fixed-width numbers, such as columns of time-series metrics.
+ *
+ * Bytes of numbers don't look alike to a byte-oriented coder: the low byte of a counter is noise while
+ * its high bytes hardly change, and they alternate in the input, so one table has to cover both.
+ * This coder takes the data as little-endian elements of 1, 2, 4 or 8 bytes and first filters each element
+ * against the one before it, then splits the result into byte planes: one plane of every element's lowest
+ * byte, one of the next, and so on.  Each plane is coded with its own HuffCoder table.
+ *
+ * Filters:
+ * 		none   Elements as they are.
+ * 		delta  Difference from the previous element, modulo the width.  For counters and timestamps,
+ * 		       whose differences are small and so have mostly-zero high planes.
+ * 		xor    Bits changed from the previous element.  For floating point gauges, whose sign, exponent and
+ * 		       leading mantissa bits rarely change.
+ *
+ * A plane that's the same byte throughout is stored as that byte, and one the table can't shrink is stored
+ * as it is, so the output is never much larger than the input.  Decoding writes typed arrays directly from
+ * the planes, without an intermediate byte array.
+ *
+ * Data format:
+ * 		[uint8]  filter: 0 none, 1 delta, 2 xor
+ * 		[uint8]  element width in bytes
+ * 		[uint32] decoded length in bytes.  Bytes past the last whole element are stored at the end.
+ * 		Plane, one per byte of the element width, least significant first:
+ * 			[uint8]  mode: 0 stored, 1 HuffCoder, 2 constant
+ * 			[uint32] payload length
+ * 			[...]    payload
+ * 		[...]    bytes past the last whole element
+ *
+ * Multi-byte fields are big-endian.  Stateless: safe to share between threads.
+ * @author Lee Coakley
+ */
+public class NumericCoder implements Codec
+{
+	public static final int filterNone  = 0;
+	public static final int filterDelta = 1;
+	public static final int filterXor   = 2;
+
+	static final int modeStored   = 0;
+	static final int modeHuffman  = 1;
+	static final int modeConstant = 2;
+	static final int headerBytes  = 1 + 1 + 4;
+	static final int planeBytes   = 1 + 4;
+
+	private final int width;
+	private final int filter;
+
+
+
+	/**
+	 * @param width  Element width in bytes: 1, 2, 4 or 8.  Only used by the byte array methods;
+	 *               the typed ones use the width of their type.
+	 * @param filter filterNone, filterDelta or filterXor.
+	 */
+	public NumericCoder( int width, int filter ) {
+		checkWidth( width );
+
+		if (filter < filterNone || filter > filterXor)
+			throw new IllegalArgumentException( "Unknown filter: " + filter );
+
+		this.width  = width;
+		this.filter = filter;
+	}
+
+
+
+	public byte[] compress( byte[] data ) {
+		byte[] out  = new byte[ compressBound(data.length) ];
+		int    size = compress( data, 0, data.length, out, 0 );
+		return Arrays.copyOf( out, size );
+	}
+
+
+
+	public byte[] decompress( byte[] data ) {
+		return decompress( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data.  Every plane header is validated and the total checked against the limits
+	 * before anything is allocated.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public byte[] decompress( byte[] data, DecodeLimits limits ) {
+		int size = getDecompressedLength( data, 0, data.length );
+		limits.check( size, data.length );
+
+		byte[] out = new byte[ size ];
+		decompress( data, 0, data.length, out, 0 );
+		return out;
+	}
+
+
+
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		Planes p = new Planes( width, filter, len / width );
+
+		for (int i=0; i<p.count; i++)
+			p.put( getLittleEndian(src, offs + i*width, width) );
+
+		int tail = p.count * width;
+		return write( p, src, offs + tail, len - tail, dst, dstOffs );
+	}
+
+
+
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		Planes p    = read( src, offs, len, 0, DecodeLimits.unlimited );
+		int    size = p.count * p.width + (offs + len - p.end);
+
+		if (size > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
+
+		for (int i=0; i<p.count; i++)
+			putLittleEndian( dst, dstOffs + i*p.width, p.width, p.next() );
+
+		System.arraycopy( src, p.end, dst, dstOffs + p.count * p.width, offs + len - p.end );
+		return size;
+	}
+
+
+
+	/**
+	 * Worst case is every plane stored.
+	 */
+	public int compressBound( int len ) {
+		return bound( len, width );
+	}
+
+
+
+	/**
+	 * Validates every plane header, so a length that the planes can't produce is rejected.
+	 */
+	public int getDecompressedLength( byte[] src, int offs, int len ) {
+		return checkPlanes( src, offs, len );
+	}
+
+
+
+	public byte[] compress( int[] values ) {
+		Planes p = new Planes( 4, filter, values.length );
+
+		for (int v: values)
+			p.put( v );
+
+		return write( p );
+	}
+
+
+
+	public byte[] compress( long[] values ) {
+		Planes p = new Planes( 8, filter, values.length );
+
+		for (long v: values)
+			p.put( v );
+
+		return write( p );
+	}
+
+
+
+	/**
+	 * Floating point values are coded by their bits, so NaN payloads and negative zero survive.
+	 */
+	public byte[] compress( float[] values ) {
+		Planes p = new Planes( 4, filter, values.length );
+
+		for (float v: values)
+			p.put( Float.floatToRawIntBits(v) );
+
+		return write( p );
+	}
+
+
+
+	public byte[] compress( double[] values ) {
+		Planes p = new Planes( 8, filter, values.length );
+
+		for (double v: values)
+			p.put( Double.doubleToRawLongBits(v) );
+
+		return write( p );
+	}
+
+
+
+	/**
+	 * Decode data compressed from an int array, or from bytes with an element width of 4.
+	 * @throws HuffFormatException if the data is malformed or has a different width.
+	 */
+	public static int[] decompressInts( byte[] data ) {
+		return decompressInts( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data, as decompress(byte[],DecodeLimits) does.
+	 * @throws HuffFormatException if the data is malformed or has a different width.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public static int[] decompressInts( byte[] data, DecodeLimits limits ) {
+		Planes p   = read( data, 0, data.length, 4, limits );
+		int[]  out = new int[ p.count ];
+
+		for (int i=0; i<out.length; i++)
+			out[i] = (int) p.next();
+
+		return out;
+	}
+
+
+
+	/**
+	 * Decode data compressed from a long array, or from bytes with an element width of 8.
+	 * @throws HuffFormatException if the data is malformed or has a different width.
+	 */
+	public static long[] decompressLongs( byte[] data ) {
+		return decompressLongs( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data, as decompress(byte[],DecodeLimits) does.
+	 * @throws HuffFormatException if the data is malformed or has a different width.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public static long[] decompressLongs( byte[] data, DecodeLimits limits ) {
+		Planes p   = read( data, 0, data.length, 8, limits );
+		long[] out = new long[ p.count ];
+
+		for (int i=0; i<out.length; i++)
+			out[i] = p.next();
+
+		return out;
+	}
+
+
+
+	public static float[] decompressFloats( byte[] data ) {
+		return decompressFloats( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data, as decompress(byte[],DecodeLimits) does.
+	 * @throws HuffFormatException if the data is malformed or has a different width.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public static float[] decompressFloats( byte[] data, DecodeLimits limits ) {
+		Planes  p   = read( data, 0, data.length, 4, limits );
+		float[] out = new float[ p.count ];
+
+		for (int i=0; i<out.length; i++)
+			out[i] = Float.intBitsToFloat( (int) p.next() );
+
+		return out;
+	}
+
+
+
+	public static double[] decompressDoubles( byte[] data ) {
+		return decompressDoubles( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decompress untrusted data, as decompress(byte[],DecodeLimits) does.
+	 * @throws HuffFormatException if the data is malformed or has a different width.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public static double[] decompressDoubles( byte[] data, DecodeLimits limits ) {
+		Planes   p   = read( data, 0, data.length, 8, limits );
+		double[] out = new double[ p.count ];
+
+		for (int i=0; i<out.length; i++)
+			out[i] = Double.longBitsToDouble( p.next() );
+
+		return out;
+	}
+
+
+
+	private static byte[] write( Planes p ) {
+		if (p.count > Integer.MAX_VALUE / p.width)
+			throw new IllegalArgumentException( "Too many values: " + p.count );
+
+		byte[] out  = new byte[ bound(p.count * p.width, p.width) ];
+		int    size = write( p, out, 0, 0, out, 0 );
+		return Arrays.copyOf( out, size );
+	}
+
+
+
+	/**
+	 * Write the header, each plane in its smallest mode, then the tail bytes.
+	 * @return Bytes written.
+	 */
+	private static int write( Planes p, byte[] tail, int tailOffs, int tailLen, byte[] dst, int dstOffs ) {
+		byte[] scratch = new byte[ HuffCoder.maxCompressedLength(p.count) ];
+		int    pos     = dstOffs;
+
+		dst[pos++] = (byte) p.filter;
+		dst[pos++] = (byte) p.width;
+		pos        = Util.putInt( dst, pos, p.count * p.width + tailLen );
+
+		for (byte[] plane: p.bytes) {
+			int mode;
+			int size;
+
+			if (p.count > 0 && isConstant( plane )) {
+				mode = modeConstant;
+				size = 1;
+				scratch[0] = plane[0];
+			}
+			else {
+				mode = modeHuffman;
+				size = HuffCoder.encode( plane, 0, p.count, scratch, 0 );
+
+				if (size >= p.count) {
+					mode = modeStored;
+					size = p.count;
+					System.arraycopy( plane, 0, scratch, 0, size );
+				}
+			}
+
+			dst[pos++] = (byte) mode;
+			pos        = Util.putInt( dst, pos, size );
+			System.arraycopy( scratch, 0, dst, pos, size );
+			pos       += size;
+		}
+
+		System.arraycopy( tail, tailOffs, dst, pos, tailLen );
+		return pos + tailLen - dstOffs;
+	}
+
+
+
+	/**
+	 * Decode every plane.  All of them are validated, and the total checked against the limits,
+	 * before the planes are allocated.
+	 * @param expectWidth Required element width with no tail, or 0 for any.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	private static Planes read( byte[] src, int offs, int len, int expectWidth, DecodeLimits limits ) {
+		int size   = checkPlanes( src, offs, len );
+		int filter = src[offs] & 0xFF;
+		int width  = src[offs + 1] & 0xFF;
+		int pos    = offs + headerBytes;
+
+		if (expectWidth != 0 && (width != expectWidth || size % width != 0))
+			throw new HuffFormatException( "Data has " + size + " bytes of width " + width + ", not whole elements of width " + expectWidth );
+
+		limits.check( size, len );
+
+		Planes p = new Planes( width, filter, size / width );
+
+		for (byte[] plane: p.bytes) {
+			int mode    = src[pos] & 0xFF;
+			int payload = Util.getInt( src, pos + 1 );
+			pos += planeBytes;
+
+			switch (mode) {
+				case modeStored:   System.arraycopy( src, pos, plane, 0, payload ); break;
+				case modeHuffman:  HuffCoder.decode( src, pos, payload, plane, 0 ); break;
+				case modeConstant: Arrays.fill( plane, src[pos] );                  break;
+			}
+
+			pos += payload;
+		}
+
+		p.end = pos;
+		return p;
+	}
+
+
+
+	/**
+	 * Validate the header and every plane header against its payload, without decoding or allocating.
+	 * @return Decoded length in bytes.
+	 * @throws HuffFormatException if the data is malformed.
+	 */
+	private static int checkPlanes( byte[] src, int offs, int len ) {
+		checkHeader( src, offs, len );
+
+		int width = src[offs + 1] & 0xFF;
+		int size  = Util.getInt( src, offs + 2 );
+		int count = size / width;
+		int end   = offs + len;
+		int pos   = offs + headerBytes;
+
+		for (int k=0; k<width; k++) {
+			if (end - pos < planeBytes)
+				throw new HuffFormatException( "Truncated header for plane " + k );
+
+			int mode    = src[pos] & 0xFF;
+			int payload = Util.getInt( src, pos + 1 );
+			pos += planeBytes;
+
+			if (payload < 0 || payload > end - pos)
+				throw new HuffFormatException( "Truncated plane " + k + ": payload of " + payload + " bytes" );
+
+			switch (mode) {
+				case modeStored:
+					if (payload != count)
+						throw new HuffFormatException( "Stored plane " + k + " has " + payload + " bytes, expected " + count );
+					break;
+
+				case modeHuffman:
+					if (HuffCoder.getDecodedLength( src, pos, payload ) != count)
+						throw new HuffFormatException( "Plane " + k + " decodes to the wrong length" );
+					break;
+
+				case modeConstant:
+					if (payload != 1)
+						throw new HuffFormatException( "Constant plane " + k + " has " + payload + " bytes" );
+					break;
+
+				default:
+					throw new HuffFormatException( "Unknown mode for plane " + k + ": " + mode );
+			}
+
+			pos += payload;
+		}
+
+		if (end - pos != size % width)
+			throw new HuffFormatException( "Expected " + (size % width) + " bytes after the planes, found " + (end - pos) );
+
+		return size;
+	}
+
+
+
+	/**
+	 * @throws HuffFormatException if the header is truncated or has bad fields.
+	 */
+	private static void checkHeader( byte[] src, int offs, int len ) {
+		if (len < headerBytes)
+			throw new HuffFormatException( "Truncated header" );
+
+		int filter = src[offs] & 0xFF;
+		int width  = src[offs + 1] & 0xFF;
+
+		if (filter > filterXor)
+			throw new HuffFormatException( "Unknown filter: " + filter );
+
+		if (width != 1 && width != 2 && width != 4 && width != 8)
+			throw new HuffFormatException( "Bad element width: " + width );
+
+		if (Util.getInt( src, offs + 2 ) < 0)
+			throw new HuffFormatException( "Bad decoded length" );
+	}
+
+
+
+	private static void checkWidth( int width ) {
+		if (width != 1 && width != 2 && width != 4 && width != 8)
+			throw new IllegalArgumentException( "Element width must be 1, 2, 4 or 8: " + width );
+	}
+
+
+
+	private static int bound( int len, int width ) {
+		return (int) Math.min( (long) len + headerBytes + width * planeBytes, Integer.MAX_VALUE );
+	}
+
+
+
+	private static boolean isConstant( byte[] plane ) {
+		byte first = plane[0];
+
+		for (byte b: plane)
+			if (b != first)
+				return false;
+
+		return true;
+	}
+
+
+
+	private static long getLittleEndian( byte[] b, int pos, int width ) {
+		long v = 0;
+
+		for (int k=width-1; k>=0; k--)
+			v = (v << 8) | (b[pos + k] & 0xFF);
+
+		return v;
+	}
+
+
+
+	private static void putLittleEndian( byte[] b, int pos, int width, long v ) {
+		for (int k=0; k<width; k++)
+			b[pos + k] = (byte) (v >>> (k * 8));
+	}
+
+
+
+	/**
+	 * Byte planes of filtered elements, filled by put() when encoding and read back by next() when decoding.
+	 * Only the low width bytes of each element are kept, so the filters' arithmetic wraps at the width.
+	 */
+	private static final class Planes
+	{
+		final byte[][] bytes;
+		final int      width;
+		final int      filter;
+		final int      count;
+
+		int            end; // After the last plane, when read
+		private int    index;
+		private long   prev;
+
+
+
+		Planes( int width, int filter, int count ) {
+			this.bytes  = new byte[ width ][ count ];
+			this.width  = width;
+			this.filter = filter;
+			this.count  = count;
+		}
+
+
+
+		void put( long v ) {
+			long d;
+
+			switch (filter) {
+				case filterDelta: d = v - prev; break;
+				case filterXor:   d = v ^ prev; break;
+				default:          d = v;        break;
+			}
+
+			for (int k=0; k<width; k++)
+				bytes[k][index] = (byte) (d >>> (k * 8));
+
+			prev = v;
+			index++;
+		}
+
+
+
+		long next() {
+			long d = 0;
+
+			for (int k=0; k<width; k++)
+				d |= (bytes[k][index] & 0xFFL) << (k * 8);
+
+			long v;
+
+			switch (filter) {
+				case filterDelta: v = prev + d; break;
+				case filterXor:   v = prev ^ d; break;
+				default:          v = d;        break;
+			}
+
+			prev = v;
+			index++;
+			return v;
+		}
+	}
+}
+
+
+
@@ -0,0 +1,435 @@
+package huffman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Decodes the single-stream HuffCoder format on several threads, with no change to the format.
+ *
+ * The code stream is cut into chunks at arbitrary bit offsets.  Chunk boundaries almost never fall
+ * on code boundaries, so each chunk but the first decodes speculatively from a wrong position.
+ * Huffman codes self-synchronise: a misaligned decode soon lands on a true code boundary, and from
+ * there on it matches the true decode exactly.  Each chunk records where its first symbols started.
+ * Once the previous chunk's true end is known, the true decode is continued from there only until it
+ * lands on one of those starts.  The speculative output is valid from that point on.
+ *
+ * A chunk that doesn't synchronise within its recorded window is finished sequentially, so the output
+ * is always exact.  Codes where that happens often are rare: all codes the same length, for one.
+ *
+ * The speculative and stitching work together take about 1.7 times as long as a plain sequential decode,
+ * so n threads can be at most about n / 1.7 times faster.  Scaling on multi-core hardware hasn't been benchmarked.
+ *
+ * Thread-safe.  Small inputs are decoded on the calling thread.
+ * @author Lee Coakley
+ */
+public class ParallelDecoder
+{
+	public static final int defaultSyncWindow = 1024;
+	public static final int minChunkBytes     = 32 * 1024;
+
+	private final ExecutorService executor;
+	private final int             chunks;
+	private final int             syncWindow;
+
+	private final AtomicLong      synced    = new AtomicLong();
+	private final AtomicLong      fallbacks = new AtomicLong();
+
+
+
+	public ParallelDecoder( ExecutorService executor, int chunks ) {
+		this( executor, chunks, defaultSyncWindow );
+	}
+
+
+
+	/**
+	 * @param chunks     Number of pieces to split each stream into, usually the number of threads.
+	 * @param syncWindow Symbols each chunk records while looking for sync.  More costs memory, fewer risks fallbacks.
+	 */
+	public ParallelDecoder( ExecutorService executor, int chunks, int syncWindow ) {
+		if (chunks < 1)
+			throw new IllegalArgumentException( "Bad chunk count: " + chunks );
+
+		if (syncWindow < 1)
+			throw new IllegalArgumentException( "Bad sync window: " + syncWindow );
+
+		this.executor   = executor;
+		this.chunks     = chunks;
+		this.syncWindow = syncWindow;
+	}
+
+
+
+	public byte[] decode( byte[] data ) throws InterruptedException {
+		return decode( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decode untrusted data.  See HuffCoder.decode(byte[],DecodeLimits).
+	 */
+	public byte[] decode( byte[] data, DecodeLimits limits ) throws InterruptedException {
+		int size = HuffCoder.getDecodedLength( data, 0, data.length );
+		limits.check( size, data.length );
+
+		byte[] out = new byte[ size ];
+		decode( data, 0, data.length, out, 0 );
+		return out;
+	}
+
+
+
+	/**
+	 * Decode src[offs,offs+len) into dst starting at dstOffs.  Output is identical to HuffCoder.decode().
+	 * @return Number of bytes written.
+	 * @throws HuffFormatException if the data is malformed.
+	 */
+	public int decode( byte[] src, int offs, int len, byte[] dst, int dstOffs ) throws InterruptedException {
+		if (len == 0)
+			return 0;
+
+		HuffWorkspace ws        = new HuffWorkspace(); // Shared read-only by the workers
+		int           tableSize = ws.readTable( src, offs, len );
+		long          size      = ws.getDecodedLength();
+		int           codeStart = offs + tableSize;
+		int           codeEnd   = offs + len;
+		int           count     = chooseChunkCount( codeEnd - codeStart );
+
+		ws.checkCodeSpace( size, codeEnd - codeStart );
+
+		if (size > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
+
+		if (count == 1) {
+			ws.decode( src, codeStart, codeEnd, dst, dstOffs, (int) size );
+			return (int) size;
+		}
+
+		long[]              bounds  = getChunkBounds( codeEnd - codeStart, count );
+		List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+
+		try {
+			for (int i=0; i<count; i++)
+				futures.add( executor.submit( new Speculation(ws, src, codeStart, codeEnd, bounds[i], bounds[i+1], (int) size) ));
+
+			return stitch( ws, src, codeStart, codeEnd, bounds, futures, dst, dstOffs, (int) size );
+		}
+		finally {
+			for (Future<Chunk> f: futures)
+				f.cancel( true );
+		}
+	}
+
+
+
+	/**
+	 * Chunks whose speculative output was used.
+	 */
+	public long getSyncedCount() {
+		return synced.get();
+	}
+
+
+
+	/**
+	 * Chunks that had to be decoded again sequentially.
+	 */
+	public long getFallbackCount() {
+		return fallbacks.get();
+	}
+
+
+
+	private int chooseChunkCount( int codeBytes ) {
+		return Math.max( 1, Math.min(chunks, codeBytes / minChunkBytes) );
+	}
+
+
+
+	/**
+	 * Bounds fall on byte boundaries.  That costs nothing, and data whose codes are all 8 bits then syncs at once.
+	 * The last chunk is open-ended: like HuffDecoder.decode(), it reads zeros past the end until it has enough bytes.
+	 */
+	private static long[] getChunkBounds( int codeBytes, int count ) {
+		long[] bounds = new long[ count + 1 ];
+
+		for (int i=0; i<count; i++)
+			bounds[i] = ((long) codeBytes * i / count) * 8;
+
+		bounds[count] = Long.MAX_VALUE;
+		return bounds;
+	}
+
+
+
+	/**
+	 * Join the chunks in order, each from where the previous one truly ended.
+	 */
+	private int stitch( HuffWorkspace ws, byte[] src, int codeStart, int codeEnd, long[] bounds, List<Future<Chunk>> futures, byte[] dst, int dstOffs, int size ) throws InterruptedException {
+		int  written = 0;
+		long truePos = 0;
+
+		for (int i=0; i<futures.size() && written < size; i++) {
+			Chunk chunk = await( futures.get(i) );
+
+			if (truePos >= bounds[i+1])
+				continue; // The previous chunk's last code ran right over this one
+
+			int first = (i == 0) ? 0 : chunk.find( truePos );
+
+			if (first < 0) { // Decode truly until landing on one of the chunk's starts, or the end of it
+				Chunk catchUp = decodeTrue( ws, src, codeStart, codeEnd, truePos, bounds[i+1], chunk, dst, dstOffs + written, size - written );
+				written += catchUp.count;
+				truePos  = catchUp.endBit;
+				first    = catchUp.syncIndex;
+
+				if (first < 0) {
+					fallbacks.incrementAndGet();
+					continue;
+				}
+			}
+
+			if (chunk.isValidFrom( first, size - written )) {
+				int n = Math.min( chunk.count - first, size - written );
+				System.arraycopy( chunk.out, first, dst, dstOffs + written, n );
+				written += n;
+				truePos  = chunk.endBit;
+				synced.incrementAndGet();
+			}
+			else { // Went wrong after syncing, which the true decode will report
+				Chunk redo = decodeTrue( ws, src, codeStart, codeEnd, truePos, bounds[i+1], null, dst, dstOffs + written, size - written );
+				written += redo.count;
+				truePos  = redo.endBit;
+				fallbacks.incrementAndGet();
+			}
+		}
+
+		if (written < size)
+			throw new HuffFormatException( "Truncated codes: decoded " + written + " of " + size + " bytes" );
+
+		return written;
+	}
+
+
+
+	/**
+	 * Decode from a true code boundary straight into dst, stopping early if it meets a start recorded by target.
+	 * @throws HuffFormatException on an invalid code.
+	 */
+	private static Chunk decodeTrue( HuffWorkspace ws, byte[] src, int codeStart, int codeEnd, long startBit, long stopBit, Chunk target, byte[] dst, int dstOffs, int maxCount ) {
+		Chunk chunk = new Chunk( dst, dstOffs, maxCount, 0 );
+		chunk.decode( ws, src, codeStart, codeEnd, startBit, stopBit, target );
+
+		if (chunk.syncIndex < 0 && ! chunk.isValidFrom( 0, maxCount ))
+			throw new HuffFormatException( "Invalid code at bit " + chunk.endBit );
+
+		return chunk;
+	}
+
+
+
+	private static Chunk await( Future<Chunk> future ) throws InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+
+			throw new RuntimeException( cause );
+		}
+	}
+
+
+
+	private final class Speculation implements Callable<Chunk>
+	{
+		private final HuffWorkspace ws;
+		private final byte[]        src;
+		private final int           codeStart;
+		private final int           codeEnd;
+		private final long          startBit;
+		private final long          stopBit;
+		private final int           maxCount;
+
+
+
+		Speculation( HuffWorkspace ws, byte[] src, int codeStart, int codeEnd, long startBit, long stopBit, int maxCount ) {
+			this.ws        = ws;
+			this.src       = src;
+			this.codeStart = codeStart;
+			this.codeEnd   = codeEnd;
+			this.startBit  = startBit;
+			this.stopBit   = stopBit;
+			this.maxCount  = maxCount;
+		}
+
+
+
+		public Chunk call() {
+			long  bits     = Math.min( stopBit, (codeEnd - codeStart) * 8L ) - startBit;
+			int   capacity = (int) Math.min( maxCount, bits / ws.getMinCodeLength() + 1 );
+			int   window   = (startBit == 0) ? 0 : syncWindow;
+			Chunk chunk    = new Chunk( new byte[capacity], 0, capacity, window );
+
+			chunk.decode( ws, src, codeStart, codeEnd, startBit, stopBit, null );
+			return chunk;
+		}
+	}
+
+
+
+	/**
+	 * Output of decoding one chunk, plus the bit positions its first symbols started at.
+	 */
+	private static final class Chunk
+	{
+		final byte[] out;
+		final int    outOffs;
+		final int    maxCount;
+		final long[] starts;
+
+		int          count;
+		long         endBit;         // Where decoding stopped: a code boundary
+		boolean      complete;       // Decoded every symbol up to the stop bit
+		int          syncIndex = -1; // Index into the target's starts where decoding met it
+
+
+
+		Chunk( byte[] out, int outOffs, int maxCount, int window ) {
+			this.out      = out;
+			this.outOffs  = outOffs;
+			this.maxCount = maxCount;
+			this.starts   = new long[ window ];
+		}
+
+
+
+		/**
+		 * Index of the symbol that started at bitPos, or -1 if it isn't among the recorded ones.
+		 */
+		int find( long bitPos ) {
+			int recorded = Math.min( count, starts.length );
+			int lo       = 0;
+			int hi       = recorded - 1;
+
+			while (lo <= hi) {
+				int  mid = (lo + hi) >>> 1;
+				long s   = starts[ mid ];
+
+				if      (s < bitPos) lo = mid + 1;
+				else if (s > bitPos) hi = mid - 1;
+				else                 return mid;
+			}
+
+			return -1;
+		}
+
+
+
+		/**
+		 * Whether the output from symbol first on is usable: the chunk reached its end,
+		 * or it already holds all the remaining bytes and whatever went wrong came after them.
+		 */
+		boolean isValidFrom( int first, int remaining ) {
+			return complete || (count - first >= remaining);
+		}
+
+
+
+		/**
+		 * Decode every symbol starting in [startBit,stopBit) of the code stream.  Same kernel as HuffDecoder.decode().
+		 * If a target is given, stop as soon as a symbol would start where one of the target's did.
+		 */
+		void decode( HuffWorkspace ws, byte[] src, int codeStart, int codeEnd, long startBit, long stopBit, Chunk target ) {
+			long[] targetStarts = (target != null) ? target.starts : null;
+			int    targetCount  = (target != null) ? Math.min( target.count, target.starts.length ) : 0;
+			int    t            = 0;
+			int[] lookup   = ws.getLookup();
+			int[] children = ws.getChildren();
+			int   peekBits = ws.getPeekBits();
+			int   mask     = (1 << peekBits) - 1;
+			int   pos      = codeStart + (int) (startBit >>> 3);
+			int   avail    = -(int) (startBit & 7);
+			long  buf      = 0;
+			long  bitPos   = startBit;
+
+			while (count < maxCount) {
+				while (avail <= 56) {
+					int b = (pos < codeEnd) ? (src[pos] & 0xFF) : 0;
+					buf    = (buf << 8) | b;
+					avail += 8;
+					pos++;
+				}
+
+				bitPos = ((long) (pos - codeStart) << 3) - avail;
+
+				if (bitPos >= stopBit) {
+					complete = true;
+					break;
+				}
+
+				if (t < targetCount) {
+					while (t < targetCount && targetStarts[t] < bitPos)
+						t++;
+
+					if (t < targetCount && targetStarts[t] == bitPos) {
+						syncIndex = t;
+						break;
+					}
+				}
+
+				if (count < starts.length)
+					starts[ count ] = bitPos;
+
+				int entry = lookup[ (int) (buf >>> (avail - peekBits)) & mask ];
+
+				if (entry > 0) {
+					out[ outOffs + count++ ] = (byte) entry;
+					avail -= entry >>> 16;
+					continue;
+				}
+
+				if (entry == 0)
+					break;
+
+				int node = ~entry;
+				avail   -= peekBits;
+
+				for (;;) {
+					int bit   = (int) (buf >>> --avail) & 1;
+					int child = children[ node*2 + bit ];
+
+					if (child == HuffDecoder.invalid)
+						node = -1;
+					else if (child < 0)
+						out[ outOffs + count++ ] = (byte) ~child;
+					else {
+						node = child;
+						continue;
+					}
+
+					break;
+				}
+
+				if (node < 0) // Invalid code
+					break;
+			}
+
+			endBit = ((long) (pos - codeStart) << 3) - avail;
+		}
+	}
+}
+
+
+
@@ -0,0 +1,253 @@
+package huffman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+
+/**
+ * Encodes the single-stream HuffCoder format on several threads.  Output is byte-identical to HuffCoder.encode().
+ *
+ * The input is cut into chunks and each is histogrammed on its own thread.  The histograms are summed into
+ * the one table for the whole stream.  Since every chunk's histogram is known, so is the exact number of bits
+ * it codes to, and therefore the bit offset in the output where each chunk's codes start.  Chunks are then
+ * coded concurrently, each straight into its place in the output, without intermediate buffers or shifting.
+ *
+ * Offsets fall mid-byte, so adjacent chunks can share one byte.  Each chunk writes its last byte with
+ * zero padding, but holds back the first one when it's shared.  Once all are done those are ORed in.
+ *
+ * Thread-safe.  Small inputs are encoded on the calling thread.
+ * @author Lee Coakley
+ */
+public class ParallelEncoder
+{
+	public static final int minChunkBytes = 64 * 1024;
+
+	private final ExecutorService executor;
+	private final int             chunks;
+
+
+
+	/**
+	 * @param chunks Number of pieces to split each input into, usually the number of threads.
+	 */
+	public ParallelEncoder( ExecutorService executor, int chunks ) {
+		if (chunks < 1)
+			throw new IllegalArgumentException( "Bad chunk count: " + chunks );
+
+		this.executor = executor;
+		this.chunks   = chunks;
+	}
+
+
+
+	public byte[] encode( byte[] data ) throws InterruptedException {
+		int[] bounds = getChunkBounds( 0, data.length, chooseChunkCount(data.length) );
+
+		if (bounds.length == 2)
+			return HuffCoder.encode( data );
+
+		List<Future<int[]>> counts = countChunks( data, bounds );
+
+		try {
+			Plan   plan = new Plan( data, bounds, awaitAll(counts) );
+			byte[] out  = new byte[ plan.size ];
+			encode( plan, out, 0 );
+			return out;
+		}
+		finally {
+			cancelAll( counts );
+		}
+	}
+
+
+
+	/**
+	 * Encode src[offs,offs+len) into dst starting at dstOffs.  Output is identical to HuffCoder.encode().
+	 * @return Number of bytes written.
+	 * @throws IllegalArgumentException if dst doesn't have room.  HuffCoder.maxCompressedLength() always fits.
+	 */
+	public int encode( byte[] src, int offs, int len, byte[] dst, int dstOffs ) throws InterruptedException {
+		int[] bounds = getChunkBounds( offs, len, chooseChunkCount(len) );
+
+		if (bounds.length == 2)
+			return HuffCoder.encode( src, offs, len, dst, dstOffs );
+
+		List<Future<int[]>> counts = countChunks( src, bounds );
+
+		try {
+			Plan plan = new Plan( src, bounds, awaitAll(counts) );
+
+			if (plan.size > dst.length - dstOffs)
+				throw new IllegalArgumentException( "Destination too small: need " + plan.size + " bytes, have " + (dst.length - dstOffs) );
+
+			encode( plan, dst, dstOffs );
+			return plan.size;
+		}
+		finally {
+			cancelAll( counts );
+		}
+	}
+
+
+
+	private int chooseChunkCount( int len ) {
+		return Math.max( 1, Math.min(chunks, len / minChunkBytes) );
+	}
+
+
+
+	/**
+	 * Where each chunk starts in the input, plus the end.
+	 */
+	private static int[] getChunkBounds( int offs, int len, int count ) {
+		int[] bounds = new int[ count + 1 ];
+
+		for (int i=0; i<=count; i++)
+			bounds[i] = offs + (int) ((long) len * i / count);
+
+		return bounds;
+	}
+
+
+
+	private List<Future<int[]>> countChunks( final byte[] src, int[] bounds ) {
+		List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+
+		for (int i=0; i<bounds.length-1; i++) {
+			final int start = bounds[ i   ];
+			final int end   = bounds[ i+1 ];
+
+			futures.add( executor.submit( new Callable<int[]>() {
+				public int[] call() {
+					int[] hist = new int[ 256 ];
+					FrequencyAnalyser.countFrequencies( src, start, end - start, hist, new int[256 * FrequencyAnalyser.laneCount] );
+					return hist;
+				}
+			}));
+		}
+
+		return futures;
+	}
+
+
+
+	/**
+	 * Write the table, code every chunk into its place, then fill in the shared bytes.
+	 */
+	private void encode( final Plan plan, final byte[] dst, int dstOffs ) throws InterruptedException {
+		plan.ws.writeTable( dst, dstOffs );
+
+		int                   codeStart = dstOffs + plan.tableSize;
+		int                   count     = plan.chunkStarts.length - 1;
+		List<Future<Integer>> futures   = new ArrayList<Future<Integer>>();
+
+		try {
+			for (int i=0; i<count; i++) {
+				final int  start  = plan.chunkStarts[ i   ];
+				final int  end    = plan.chunkStarts[ i+1 ];
+				final long bitPos = plan.bitStarts  [ i   ];
+				final int  pos    = codeStart + (int) (bitPos >>> 3);
+
+				futures.add( executor.submit( new Callable<Integer>() {
+					public Integer call() {
+						return plan.encoder.encodeShared( plan.src, start, end - start, dst, pos, (int) (bitPos & 7) );
+					}
+				}));
+			}
+
+			for (int i=0; i<count; i++) {
+				int first = await( futures.get(i) );
+
+				if ((plan.bitStarts[i] & 7) != 0) // After the previous chunk wrote its side of the byte
+					dst[ codeStart + (int) (plan.bitStarts[i] >>> 3) ] |= (byte) first;
+			}
+		}
+		finally {
+			cancelAll( futures );
+		}
+	}
+
+
+
+	private static int[][] awaitAll( List<Future<int[]>> futures ) throws InterruptedException {
+		int[][] results = new int[ futures.size() ][];
+
+		for (int i=0; i<results.length; i++)
+			results[i] = await( futures.get(i) );
+
+		return results;
+	}
+
+
+
+	private static <T> T await( Future<T> future ) throws InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+
+			throw new RuntimeException( cause );
+		}
+	}
+
+
+
+	private static <T> void cancelAll( List<Future<T>> futures ) {
+		for (Future<T> f: futures)
+			f.cancel( true );
+	}
+
+
+
+	/**
+	 * The table for the whole input, and where each chunk's input and output start.
+	 */
+	private static final class Plan
+	{
+		final byte[]        src;
+		final HuffWorkspace ws = new HuffWorkspace();
+		final HuffEncoder   encoder;
+		final int           size;
+		final int           tableSize;
+		final int[]         chunkStarts;
+		final long[]        bitStarts;
+
+
+
+		Plan( byte[] src, int[] chunkStarts, int[][] hists ) {
+			int[] total = new int[ 256 ];
+
+			for (int[] h: hists)
+				for (int b=0; b<256; b++)
+					total[b] += h[b];
+
+			this.src         = src;
+			this.size        = ws.analyse( total );
+			this.tableSize   = ws.getTableSize();
+			this.encoder     = ws.toEncoder();
+			this.chunkStarts = chunkStarts;
+			this.bitStarts   = new long[ hists.length + 1 ];
+
+			for (int i=0; i<hists.length; i++) {
+				long bits = 0;
+
+				for (int b=0; b<256; b++)
+					bits += (long) hists[i][b] * encoder.getCodeLength( (byte) b );
+
+				bitStarts[i+1] = bitStarts[i] + bits;
+			}
+		}
+	}
+}
+
+
+
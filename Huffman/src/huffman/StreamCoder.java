@@ -0,0 +1,313 @@
+package huffman;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+
+/**
+ * Command-line filter: compresses or decompresses stdin to stdout in the BlockCoder format, for shell pipelines.
+ *
+ * Usage:
+ * 		StreamCoder (-c | -d | -t) [-block kb] [-threads n] [-level n] [-quiet]
+ *
+ * 		-c  Compress.
+ * 		-d  Decompress.
+ * 		-t  Test: decompress and discard the output, failing if the stream is corrupt.
+ *
+ * 		-block kb  Largest block.  Defaults to the level's own.
+ * 		-level n   1, fastest, to 9, smallest.  See BlockCoder for what each does.
+ *
+ * Memory is bounded by the block size and thread count, never the length of the stream.
+ * With more than one thread, blocks are compressed concurrently and written in order.  Each block then
+ * starts with its own table instead of patching the previous one, so the output differs slightly from
+ * single-threaded output but decodes the same.  Decompression is always sequential, as blocks may
+ * depend on the table before them.
+ *
+ * Throughput and size are reported on stderr unless -quiet is given.  Exits with status 1 on any error.
+ * @author Lee Coakley
+ */
+public class StreamCoder
+{
+	private static final int ioBufferSize = 64 * 1024;
+
+	private final BlockCoder coder;
+	private final int        threads;
+
+	private long bytesIn;
+	private long bytesOut;
+
+
+
+	public StreamCoder( BlockCoder coder, int threads ) {
+		this.coder   = coder;
+		this.threads = Math.max( 1, threads );
+	}
+
+
+
+	public static void main( String[] args ) {
+		if (args.length < 1) {
+			printUsage();
+			System.exit( 2 );
+		}
+
+		String  mode      = args[0];
+		int     blockSize = Integer.MIN_VALUE; // Not given: the level's own
+		int     threads   = 1;
+		int     level     = BlockCoder.defaultLevel;
+		boolean quiet     = false;
+
+		try {
+			for (int i=1; i<args.length; i++) {
+				if      (args[i].equals( "-block"   )) blockSize = getBlockSizeArg( args, ++i );
+				else if (args[i].equals( "-threads" )) threads   = getIntArg( args, ++i );
+				else if (args[i].equals( "-level"   )) level     = getIntArg( args, ++i );
+				else if (args[i].equals( "-quiet"   )) quiet     = true;
+				else throw new IllegalArgumentException( "Unknown option: " + args[i] );
+			}
+
+			if ( ! mode.matches( "-[cdt]" ))
+				throw new IllegalArgumentException( "Unknown mode: " + mode );
+
+			BlockCoder   coder = (blockSize != Integer.MIN_VALUE) ? new BlockCoder( blockSize, level ) : BlockCoder.forLevel( level );
+			StreamCoder  sc    = new StreamCoder( coder, threads );
+			InputStream  in    = new FileInputStream ( FileDescriptor.in  );
+			OutputStream out   = new FileOutputStream( FileDescriptor.out );
+			long         start = System.nanoTime();
+
+			switch (mode) {
+				case "-c": sc.compress  ( in, out  ); break;
+				case "-d": sc.decompress( in, out  ); break;
+				case "-t": sc.decompress( in, null ); break;
+			}
+
+			out.flush();
+
+			if ( ! quiet)
+				sc.printSummary( mode, System.nanoTime() - start );
+		}
+		catch (IllegalArgumentException ex) {
+			System.err.println( "Error: " + ex.getMessage() );
+			printUsage();
+			System.exit( 2 );
+		}
+		catch (IOException | HuffFormatException | HuffLimitException ex) {
+			System.err.println( "Error: " + ex.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+
+
+	/**
+	 * Compress everything from in to out.  Neither stream is closed.
+	 */
+	public void compress( InputStream in, OutputStream out ) throws IOException {
+		if (threads == 1)
+			 compressSequential( in, out );
+		else compressParallel  ( in, out );
+	}
+
+
+
+	/**
+	 * Decompress everything from in to out, or just check it when out is null.  Neither stream is closed.
+	 * @throws HuffFormatException if the stream is corrupt or cut short.
+	 */
+	public void decompress( InputStream in, OutputStream out ) throws IOException {
+		Decompressor d      = new Decompressor();
+		byte[]       input  = new byte[ ioBufferSize ];
+		byte[]       output = new byte[ ioBufferSize ];
+		boolean      atEnd  = false;
+
+		while ( ! d.finished()) {
+			if (d.needsInput() && ! atEnd) {
+				int n = in.read( input );
+
+				if (n < 0) {
+					atEnd = true;
+					d.finish();
+					continue;
+				}
+
+				bytesIn += n;
+				d.setInput( input, 0, n );
+			}
+
+			int n = d.decompress( output );
+
+			if (n == 0 && atEnd && ! d.finished())
+				throw new HuffFormatException( "Truncated stream" );
+
+			write( out, output, n );
+		}
+	}
+
+
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+
+
+	private void compressSequential( InputStream in, OutputStream out ) throws IOException {
+		Compressor c      = new Compressor( coder );
+		byte[]     input  = new byte[ ioBufferSize ];
+		byte[]     output = new byte[ ioBufferSize ];
+
+		for (;;) {
+			int n = in.read( input );
+
+			if (n < 0)
+				break;
+
+			bytesIn += n;
+			c.setInput( input, 0, n );
+
+			while ( ! c.needsInput())
+				write( out, output, c.compress(output) );
+		}
+
+		c.finish();
+
+		while ( ! c.finished())
+			write( out, output, c.compress(output) );
+	}
+
+
+
+	/**
+	 * Read blocks on this thread, code them on the pool, and write them in order.
+	 * At most two blocks per thread are in flight, which bounds memory.
+	 */
+	private void compressParallel( InputStream in, OutputStream out ) throws IOException {
+		ExecutorService            pool     = Executors.newFixedThreadPool( threads );
+		ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+
+		try {
+			for (;;) {
+				final byte[] block = in.readNBytes( coder.getBlockSize() );
+
+				if (block.length == 0)
+					break;
+
+				bytesIn += block.length;
+
+				if (inFlight.size() >= threads * 2)
+					writeBlock( out, inFlight.poll() );
+
+				inFlight.add( pool.submit( new Callable<byte[]>() {
+					public byte[] call() {
+						return coder.compress( block );
+					}
+				}));
+			}
+
+			while ( ! inFlight.isEmpty())
+				writeBlock( out, inFlight.poll() );
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+
+	private void writeBlock( OutputStream out, Future<byte[]> future ) throws IOException {
+		try {
+			byte[] data = future.get();
+			write( out, data, data.length );
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted waiting for a block" );
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+
+			throw new IOException( cause );
+		}
+	}
+
+
+
+	private void write( OutputStream out, byte[] data, int len ) throws IOException {
+		if (out != null)
+			out.write( data, 0, len );
+
+		bytesOut += len;
+	}
+
+
+
+	private void printSummary( String mode, long nanos ) {
+		double seconds   = Math.max( nanos / 1e9, 1e-9 );
+		long   raw       = mode.equals( "-c" ) ? bytesIn  : bytesOut;
+		long   packed    = mode.equals( "-c" ) ? bytesOut : bytesIn;
+		double megabytes = raw / (1024.0 * 1024.0);
+		double ratio     = (raw == 0) ? 0 : packed / (double) raw;
+
+		if (mode.equals( "-t" ))
+			System.err.println( "OK" );
+
+		System.err.println( "Bytes in:    " + bytesIn  );
+		System.err.println( "Bytes out:   " + bytesOut );
+		System.err.println( "Size factor: " + Math.round( ratio * 100 ) + "%" );
+		System.err.println( "Time:        " + String.format( "%.3f s",    seconds ) );
+		System.err.println( "Throughput:  " + String.format( "%.2f MB/s", megabytes / seconds ) );
+	}
+
+
+
+	private static int getIntArg( String[] args, int i ) {
+		if (i >= args.length)
+			throw new IllegalArgumentException( "Missing value for " + args[i-1] );
+
+		return Integer.parseInt( args[i] );
+	}
+
+
+
+	/**
+	 * @return Block size in bytes, from a value given in kilobytes.
+	 */
+	private static int getBlockSizeArg( String[] args, int i ) {
+		int kb = getIntArg( args, i );
+
+		if (kb <= 0 || kb > Integer.MAX_VALUE / 1024)
+			throw new IllegalArgumentException( "Bad block size: " + kb + " kb" );
+
+		return kb * 1024;
+	}
+
+
+
+	private static void printUsage() {
+		System.err.println( "Usage: StreamCoder (-c | -d | -t) [-block kb] [-threads n] [-level " + BlockCoder.minLevel + "-" + BlockCoder.maxLevel + "] [-quiet]" );
+	}
+}
+
+
+
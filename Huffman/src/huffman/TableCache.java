@@ -0,0 +1,396 @@
+package huffman;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * HuffCoder format with built tables kept and reused between messages.
+ * For small messages, reading the table and building the tree costs more than decoding the codes.
+ * Messages of one kind often repeat a table exactly, so the decoder built for it the first time is
+ * looked up instead of rebuilt.  Encoding works the same way: if a message's table has been seen
+ * before, its codes are reused and the tree is never built.  Output is identical to HuffCoder's.
+ *
+ * Tables are keyed by their serialized bytes and compared in full, so a hash collision can't pick
+ * the wrong one.  The least recently used table is evicted once the cache is at capacity.
+ * Thread-safe: the cache is locked only to find and insert tables, and coding runs outside the lock.
+ * @author Lee Coakley
+ */
+public class TableCache implements Codec
+{
+	public static final int defaultCapacity = 256;
+
+	private final int                      capacity;
+	private final LinkedHashMap<Key,Entry> map;
+	private final AtomicLong               hits      = new AtomicLong();
+	private final AtomicLong               misses    = new AtomicLong();
+	private final AtomicLong               evictions = new AtomicLong();
+
+
+
+	public TableCache() {
+		this( defaultCapacity );
+	}
+
+
+
+	/**
+	 * @param capacity Most tables kept at once.  Each costs a few KB.
+	 */
+	public TableCache( int capacity ) {
+		if (capacity < 1)
+			throw new IllegalArgumentException( "Bad capacity: " + capacity );
+
+		this.capacity = capacity;
+		this.map      = new LinkedHashMap<Key,Entry>( 16, 0.75f, true ) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry( Map.Entry<Key,Entry> eldest ) {
+				if (size() <= TableCache.this.capacity)
+					return false;
+
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+
+
+	/**
+	 * Number of tables currently cached.
+	 */
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+
+
+	public void clear() {
+		synchronized (map) {
+			map.clear();
+		}
+	}
+
+
+
+	/**
+	 * Number of lookups that found their table already built, for encoding and decoding combined.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+
+
+	/**
+	 * Get the decoder for the table at the start of src[offs,offs+len), building it only if it isn't cached.
+	 * @throws HuffFormatException if the table is malformed.
+	 */
+	public HuffDecoder getDecoder( byte[] src, int offs, int len ) {
+		return getEntry( src, offs, len ).decoder;
+	}
+
+
+
+	public byte[] compress( byte[] data ) {
+		if (data.length == 0)
+			return new byte[ 0 ];
+
+		HuffWorkspace ws        = HuffWorkspace.get();
+		int           tableSize = ws.prepareTable( data, 0, data.length );
+		byte[]        table     = new byte[ tableSize ];
+
+		ws.writeTable( table, 0 );
+
+		Entry  entry = getEntry( ws, table, 0, tableSize );
+		byte[] out   = new byte[ entry.getEncodedSize( ws.getHistogram() ) ];
+
+		System.arraycopy( table, 0, out, 0, tableSize );
+		entry.encoder.encode( data, 0, data.length, out, tableSize );
+		return out;
+	}
+
+
+
+	/**
+	 * Same as HuffCoder.encode(), reusing cached codes when the table matches.
+	 * @throws IllegalArgumentException if dst doesn't have room.  compressBound() always fits.
+	 */
+	public int compress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+
+		HuffWorkspace ws        = HuffWorkspace.get();
+		int           tableSize = ws.prepareTable( src, offs, len );
+
+		if (tableSize > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + tableSize + " bytes, have " + (dst.length - dstOffs) );
+
+		ws.writeTable( dst, dstOffs );
+
+		Entry entry = getEntry( ws, dst, dstOffs, tableSize );
+		int   size  = entry.getEncodedSize( ws.getHistogram() );
+
+		if (size > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
+
+		return tableSize + entry.encoder.encode( src, offs, len, dst, dstOffs + tableSize );
+	}
+
+
+
+	public byte[] decompress( byte[] data ) {
+		return decompress( data, DecodeLimits.unlimited );
+	}
+
+
+
+	/**
+	 * Decode untrusted data.  A cached table was validated when it was first built, and a new one is validated
+	 * before it's cached.  Either way the size is checked against the limits before anything is allocated.
+	 * @throws HuffFormatException if the data is malformed.
+	 * @throws HuffLimitException if it would decode to more than the limits allow.
+	 */
+	public byte[] decompress( byte[] data, DecodeLimits limits ) {
+		if (data.length == 0)
+			return new byte[ 0 ];
+
+		Entry entry = getEntry( data, 0, data.length );
+		limits.check( entry.decoder.getSymbolCount(), data.length );
+
+		byte[] out = new byte[ entry.decoder.getSymbolCount() ];
+		entry.decoder.decode( data, entry.tableSize, data.length, out, 0, out.length );
+		return out;
+	}
+
+
+
+	/**
+	 * Same as HuffCoder.decode(), reusing the cached decoder when the table matches.
+	 * @throws IllegalArgumentException if dst doesn't have room.
+	 */
+	public int decompress( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		if (len == 0)
+			return 0;
+
+		Entry entry = getEntry( src, offs, len );
+		int   size  = entry.decoder.getSymbolCount();
+
+		if (size > dst.length - dstOffs)
+			throw new IllegalArgumentException( "Destination too small: need " + size + " bytes, have " + (dst.length - dstOffs) );
+
+		entry.decoder.decode( src, offs + entry.tableSize, offs + len, dst, dstOffs, size );
+		return size;
+	}
+
+
+
+	public int compressBound( int len ) {
+		return HuffCoder.maxCompressedLength( len );
+	}
+
+
+
+	public int getDecompressedLength( byte[] src, int offs, int len ) {
+		if (len == 0)
+			return 0;
+
+		return getEntry( src, offs, len ).decoder.getSymbolCount();
+	}
+
+
+
+	/**
+	 * Find or build the entry for a table the workspace has just written.
+	 */
+	private Entry getEntry( HuffWorkspace ws, byte[] table, int offs, int tableSize ) {
+		Entry entry = find( table, offs, tableSize );
+
+		if (entry == null) {
+			ws.buildCodes();
+			entry = add( table, offs, tableSize, new Entry(ws, tableSize) );
+		}
+
+		return entry;
+	}
+
+
+
+	/**
+	 * Find or build the entry for the table at the start of compressed data,
+	 * and check the data is long enough for what the table claims.
+	 */
+	private Entry getEntry( byte[] src, int offs, int len ) {
+		if (len < HuffTable.headerBits / 8)
+			throw new HuffFormatException( "Bad size: " + len );
+
+		int tableSize = HuffWorkspace.getTableSize( src, offs );
+
+		if (tableSize > len)
+			throw new HuffFormatException( "Truncated table: need " + tableSize + " bytes, have " + len );
+
+		Entry entry = find( src, offs, tableSize );
+
+		if (entry == null) {
+			HuffWorkspace ws = HuffWorkspace.get();
+			ws.readTable( src, offs, len );
+
+			if (ws.getDecodedLength() > Integer.MAX_VALUE)
+				throw new HuffFormatException( "Decoded size too large: " + ws.getDecodedLength() );
+
+			entry = add( src, offs, tableSize, new Entry(ws, tableSize) );
+		}
+
+		long minBits = (long) entry.decoder.getSymbolCount() * entry.minLength;
+		long bytes   = len - tableSize;
+
+		if (minBits > bytes * 8)
+			throw new HuffFormatException( "Claims " + entry.decoder.getSymbolCount() + " bytes, but has only " + bytes + " bytes of codes" );
+
+		return entry;
+	}
+
+
+
+	private Entry find( byte[] src, int offs, int len ) {
+		Key   key = new Key( src, offs, len );
+		Entry entry;
+
+		synchronized (map) {
+			entry = map.get( key );
+		}
+
+		if (entry != null)
+			 hits  .incrementAndGet();
+		else misses.incrementAndGet();
+
+		return entry;
+	}
+
+
+
+	/**
+	 * Cache an entry under a copy of its table bytes.
+	 * @return The entry now cached, which is an earlier one if another thread got there first.
+	 */
+	private Entry add( byte[] src, int offs, int len, Entry entry ) {
+		Key key = new Key( Arrays.copyOfRange(src, offs, offs + len), 0, len );
+
+		synchronized (map) {
+			Entry prev = map.putIfAbsent( key, entry );
+			return (prev != null) ? prev : entry;
+		}
+	}
+
+
+
+	/**
+	 * A serialized table.  Lookups wrap the caller's bytes; only cached keys own a copy.
+	 */
+	private static final class Key
+	{
+		final byte[] bytes;
+		final int    offs;
+		final int    len;
+		final int    hash;
+
+
+
+		Key( byte[] bytes, int offs, int len ) {
+			int h = len;
+
+			for (int i=offs; i<offs+len; i++)
+				h = (h * 31) + bytes[i];
+
+			this.bytes = bytes;
+			this.offs  = offs;
+			this.len   = len;
+			this.hash  = h;
+		}
+
+
+
+		public int hashCode() {
+			return hash;
+		}
+
+
+
+		public boolean equals( Object obj ) {
+			if ( ! (obj instanceof Key))
+				return false;
+
+			Key k = (Key) obj;
+
+			return hash == k.hash
+				&& Arrays.equals( bytes, offs, offs + len, k.bytes, k.offs, k.offs + k.len );
+		}
+	}
+
+
+
+	/**
+	 * Everything built from one table.  Immutable once cached.
+	 */
+	private static final class Entry
+	{
+		final HuffEncoder encoder;
+		final HuffDecoder decoder;
+		final int         tableSize;
+		final int         minLength;
+
+
+
+		Entry( HuffWorkspace ws, int tableSize ) {
+			this.encoder   = ws.toEncoder();
+			this.decoder   = ws.toDecoder();
+			this.tableSize = tableSize;
+			this.minLength = ws.getMinCodeLength();
+		}
+
+
+
+		/**
+		 * Exact output size, table included, for data with this histogram.
+		 */
+		int getEncodedSize( int[] hist ) {
+			long bits = 0;
+
+			for (int s=0; s<256; s++)
+				bits += (long) hist[s] * encoder.getCodeLength( (byte) s );
+
+			long size = tableSize + ((bits + 7) / 8);
+
+			if (size > Integer.MAX_VALUE)
+				throw new IllegalArgumentException( "Output too large: " + size + " bytes" );
+
+			return (int) size;
+		}
+	}
+}
+
+
+
@@ -0,0 +1,404 @@
+package huffman;
+import java.util.Arrays;
+
+
+
+/**
+ * The Huffman table carried from one block to the next within a BlockCoder stream.
+ * Adjacent blocks of the same data usually have near-identical histograms, so a block can
+ * repeat the previous table outright, or send only the difference, instead of a full table.
+ * The encoder picks whichever of the three makes the block smallest.
+ *
+ * Table modes, stored in the block header's flags byte:
+ * 		0 new:    payload is the full HuffCoder format, table then codes.
+ * 		1 repeat: payload is codes only, using the previous table.  Decoders reuse its tables as-is.
+ * 		2 delta:  payload is a delta table, then codes.
+ *
+ * Delta table format:
+ * 		Header:
+ * 			[9 bits] number of symbols in the new table
+ * 			[5 bits] delta width
+ * 			[1 bit]  same symbols as the previous table
+ * 			[1 bit]  padding
+ * 		Element, in ascending byte order, one per symbol of the new table:
+ * 			[8 bits] byte, omitted if the symbols are the same
+ * 			[width]  frequency minus the previous frequency, zigzag encoded
+ * 		The table ends on a byte boundary.
+ *
+ * The first Huffman block of a stream always has a new table, so streams still concatenate.
+ * Encoder and decoder must see the same sequence of blocks.  Not thread-safe.
+ * @author Lee Coakley
+ */
+final class TableChain
+{
+	static final int modeNew    = 0;
+	static final int modeRepeat = 1;
+	static final int modeDelta  = 2;
+
+	private static final int deltaCountBits  = 9;
+	private static final int deltaWidthBits  = 5;
+	private static final int deltaHeaderBits = 16;
+	private static final int maxDeltaWidth   = 31;
+
+	private HuffWorkspace table = new HuffWorkspace(); // In use by the stream
+	private HuffWorkspace spare = new HuffWorkspace(); // Being built for the current block
+	private boolean       hasTable;
+
+	private final int[]   tableFreqs = new int[ 256 ];
+	private final int[]   deltaFreqs = new int[ 256 ];
+
+	// Encoder's decision for the block last passed to plan()
+	private int mode;
+	private int size;
+	private int deltaSize;
+
+
+
+	/**
+	 * Forget the previous table, as at the start of a stream.
+	 */
+	void reset() {
+		hasTable = false;
+	}
+
+
+
+	/**
+	 * Analyse a block and choose its table mode.
+	 * @return Exact payload size in bytes if the block is Huffman coded.
+	 */
+	int plan( byte[] src, int offs, int len ) {
+		int   newSize   = spare.analyse( src, offs, len );
+		int   codeBytes = newSize - spare.getTableSize();
+		int[] hist      = spare.getHistogram();
+
+		mode = modeNew;
+		size = newSize;
+
+		if ( ! hasTable)
+			return size;
+
+		long repeatBits = table.getCodeBits( hist, len );
+
+		if (repeatBits >= 0 && (repeatBits + 7) / 8 <= size) {
+			mode = modeRepeat;
+			size = (int) ((repeatBits + 7) / 8);
+		}
+
+		deltaSize = getDeltaSize( hist );
+
+		if (deltaSize > 0 && deltaSize + codeBytes < size) {
+			mode = modeDelta;
+			size = deltaSize + codeBytes;
+		}
+
+		return size;
+	}
+
+
+
+	/**
+	 * Table mode chosen by the last plan().
+	 */
+	int getMode() {
+		return mode;
+	}
+
+
+
+	/**
+	 * Write the payload for the block last passed to plan().
+	 * @return Number of bytes written.
+	 */
+	int encode( byte[] src, int offs, int len, byte[] dst, int dstOffs ) {
+		switch (mode) {
+			case modeRepeat:
+				return table.encodeCodes( src, offs, len, dst, dstOffs );
+
+			case modeDelta:
+				writeDelta( spare.getHistogram(), dst, dstOffs );
+				return deltaSize + spare.encodeCodes( src, offs, len, dst, dstOffs + deltaSize );
+
+			default:
+				return spare.encode( src, offs, len, dst, dstOffs );
+		}
+	}
+
+
+
+	/**
+	 * The block was emitted as planned: make its table the one in use.
+	 */
+	void commit() {
+		if (mode != modeRepeat)
+			adoptSpare();
+	}
+
+
+
+	/**
+	 * Size in bytes of a block's table, given at least its first two bytes.
+	 */
+	static int getTableSize( int mode, byte[] src, int offs ) {
+		switch (mode) {
+			case modeNew:    return HuffWorkspace.getTableSize( src, offs );
+			case modeRepeat: return 0;
+			case modeDelta:  return getDeltaSize( src, offs );
+			default:         throw new HuffFormatException( "Bad table mode: " + mode );
+		}
+	}
+
+
+
+	/**
+	 * Read a block's table and make it the one in use.
+	 * @return Size of the table in bytes.
+	 */
+	int readTable( int mode, byte[] src, int offs, int len, int decLen ) {
+		int tableSize;
+
+		switch (mode) {
+			case modeNew:
+				tableSize = spare.readTable( src, offs, len );
+				break;
+
+			case modeRepeat:
+				if ( ! hasTable)
+					throw new HuffFormatException( "Repeated table with no previous table" );
+
+				return 0;
+
+			case modeDelta:
+				if ( ! hasTable)
+					throw new HuffFormatException( "Delta table with no previous table" );
+
+				tableSize = readDelta( src, offs, len );
+				break;
+
+			default:
+				throw new HuffFormatException( "Bad table mode: " + mode );
+		}
+
+		if (spare.getDecodedLength() != decLen)
+			throw new HuffFormatException( "Table covers " + spare.getDecodedLength() + " bytes, block has " + decLen );
+
+		adoptSpare();
+		return tableSize;
+	}
+
+
+
+	/**
+	 * Decode a Huffman block's payload.
+	 * @return Number of bytes written, always decLen.
+	 */
+	int decode( int mode, byte[] src, int offs, int len, byte[] dst, int dstOffs, int decLen ) {
+		int tableSize = readTable( mode, src, offs, len, decLen );
+		table.checkCodeSpace( decLen, len - tableSize );
+		table.decode( src, offs + tableSize, offs + len, dst, dstOffs, decLen );
+		return decLen;
+	}
+
+
+
+	/**
+	 * The table in use, for decoders that keep their own bit state.
+	 */
+	HuffWorkspace getTable() {
+		return table;
+	}
+
+
+
+	private void adoptSpare() {
+		HuffWorkspace t = table;
+		table    = spare;
+		spare    = t;
+		hasTable = true;
+		table.getFrequencies( tableFreqs );
+	}
+
+
+
+	private static boolean sameSymbols( int[] a, int[] b ) {
+		for (int s=0; s<256; s++)
+			if ((a[s] > 0) != (b[s] > 0))
+				return false;
+
+		return true;
+	}
+
+
+
+	private static long zigzag( int delta ) {
+		return ((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL;
+	}
+
+
+
+	private static int unzigzag( long z ) {
+		return (int) (z >>> 1) ^ -(int) (z & 1);
+	}
+
+
+
+	/**
+	 * @return Size in bytes of the delta from the table in use to hist, or -1 if it can't be expressed.
+	 */
+	private int getDeltaSize( int[] hist ) {
+		long largest = 0;
+		int  count   = 0;
+
+		for (int s=0; s<256; s++) {
+			if (hist[s] == 0)
+				continue;
+
+			largest = Math.max( largest, zigzag(hist[s] - tableFreqs[s]) );
+			count++;
+		}
+
+		int width = 64 - Long.numberOfLeadingZeros( largest );
+
+		if (width > maxDeltaWidth)
+			return -1;
+
+		int  elemBits = sameSymbols( hist, tableFreqs ) ? width : HuffTable.elemIndexBits + width;
+		long bits     = deltaHeaderBits + (long) count * elemBits;
+		return (int) ((bits + 7) / 8);
+	}
+
+
+
+	private static int getDeltaSize( byte[] src, int offs ) {
+		int     count    = (int) HuffWorkspace.readBits( src, offs, 0,                               deltaCountBits );
+		int     width    = (int) HuffWorkspace.readBits( src, offs, deltaCountBits,                  deltaWidthBits );
+		boolean same     =       HuffWorkspace.readBits( src, offs, deltaCountBits + deltaWidthBits, 1 ) != 0;
+		int     elemBits = same ? width : HuffTable.elemIndexBits + width;
+		long    bits     = deltaHeaderBits + (long) count * elemBits;
+		return (int) ((bits + 7) / 8);
+	}
+
+
+
+	private void writeDelta( int[] hist, byte[] dst, int dstOffs ) {
+		boolean same    = sameSymbols( hist, tableFreqs );
+		int     count   = 0;
+		long    largest = 0;
+
+		for (int s=0; s<256; s++) {
+			if (hist[s] > 0) {
+				largest = Math.max( largest, zigzag(hist[s] - tableFreqs[s]) );
+				count++;
+			}
+		}
+
+		int  width   = 64 - Long.numberOfLeadingZeros( largest );
+		int  pos     = dstOffs;
+		long acc     = (((((long) count << deltaWidthBits) | width) << 1) | (same ? 1 : 0)) << 1;
+		int  accBits = deltaHeaderBits;
+
+		for (int s=0; s<=256; s++) {
+			while (accBits >= 8) {
+				accBits -= 8;
+				dst[pos++] = (byte) (acc >>> accBits);
+			}
+
+			if (s == 256)
+				break;
+
+			if (hist[s] == 0)
+				continue;
+
+			if ( ! same) {
+				acc      = (acc << HuffTable.elemIndexBits) | s;
+				accBits += HuffTable.elemIndexBits;
+			}
+
+			acc      = (acc << width) | zigzag( hist[s] - tableFreqs[s] );
+			accBits += width;
+		}
+
+		if (accBits > 0)
+			dst[pos] = (byte) (acc << (8 - accBits));
+	}
+
+
+
+	/**
+	 * Rebuild the next table's frequencies from a delta against the one in use.
+	 */
+	private int readDelta( byte[] src, int offs, int len ) {
+		if (len < deltaHeaderBits / 8)
+			throw new HuffFormatException( "Truncated delta table" );
+
+		int     count = (int) HuffWorkspace.readBits( src, offs, 0,                               deltaCountBits );
+		int     width = (int) HuffWorkspace.readBits( src, offs, deltaCountBits,                  deltaWidthBits );
+		boolean same  =       HuffWorkspace.readBits( src, offs, deltaCountBits + deltaWidthBits, 1 ) != 0;
+		int     size  = getDeltaSize( src, offs );
+
+		if (count <= 0 || count > 256)
+			throw new HuffFormatException( "Bad delta table size: " + count );
+
+		if (size > len)
+			throw new HuffFormatException( "Truncated delta table: need " + size + " bytes, have " + len );
+
+		if (same && count != countSymbols(tableFreqs))
+			throw new HuffFormatException( "Delta table size doesn't match the previous table" );
+
+		Arrays.fill( deltaFreqs, 0 );
+
+		long bitPos = deltaHeaderBits;
+		int  prev   = -1;
+
+		for (int i=0; i<count; i++) {
+			int s;
+
+			if (same)
+				s = nextSymbol( tableFreqs, prev + 1 );
+			else {
+				s       = (int) HuffWorkspace.readBits( src, offs, bitPos, HuffTable.elemIndexBits );
+				bitPos += HuffTable.elemIndexBits;
+			}
+
+			if (s <= prev)
+				throw new HuffFormatException( "Delta table out of order" );
+
+			long freq = tableFreqs[s] + (long) unzigzag( HuffWorkspace.readBits(src, offs, bitPos, width) );
+			bitPos   += width;
+
+			if (freq <= 0 || freq > Integer.MAX_VALUE)
+				throw new HuffFormatException( "Bad delta frequency for byte " + s );
+
+			deltaFreqs[s] = (int) freq;
+			prev          = s;
+		}
+
+		spare.analyse( deltaFreqs );
+		return size;
+	}
+
+
+
+	private static int nextSymbol( int[] freqs, int from ) {
+		for (int s=from; s<256; s++)
+			if (freqs[s] > 0)
+				return s;
+
+		return -1;
+	}
+
+
+
+	private static int countSymbols( int[] freqs ) {
+		int count = 0;
+
+		for (int f: freqs)
+			if (f > 0)
+				count++;
+
+		return count;
+	}
+}
+
+
+
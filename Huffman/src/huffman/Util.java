@@ -40,4 +40,42 @@ public final class Util
 		
 		return out;
 	}
+	
+	
+	
+	/**
+	 * Write a big-endian int.
+	 * @return Position after it.
+	 */
+	static int putInt( byte[] b, int pos, int v ) {
+		b[pos  ] = (byte) (v >>> 24);
+		b[pos+1] = (byte) (v >>> 16);
+		b[pos+2] = (byte) (v >>>  8);
+		b[pos+3] = (byte)  v;
+		return pos + 4;
+	}
+	
+	
+	
+	/**
+	 * Write a big-endian unsigned short.
+	 * @return Position after it.
+	 */
+	static int putShort( byte[] b, int pos, int v ) {
+		b[pos  ] = (byte) (v >>> 8);
+		b[pos+1] = (byte)  v;
+		return pos + 2;
+	}
+	
+	
+	
+	static int getInt( byte[] b, int pos ) {
+		return ((b[pos] & 0xFF) << 24) | ((b[pos+1] & 0xFF) << 16) | ((b[pos+2] & 0xFF) << 8) | (b[pos+3] & 0xFF);
+	}
+	
+	
+	
+	static int getShort( byte[] b, int pos ) {
+		return ((b[pos] & 0xFF) << 8) | (b[pos+1] & 0xFF);
+	}
 }